@@ -16,13 +16,17 @@ public class Interpreter {
 							"Press Ctrl + C to exit.");
 		Reader reader = new Reader();
 		Evaluator eval = new Evaluator();
+		StackMachine machine = null;
+		for(String arg : args)
+			if(arg.equals("-stack")) // Run programs on the stack machine.
+				machine = new StackMachine();
 		Printer printer = new Printer();
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
 				if(p._e == null) continue REPL;
-				Value val = eval.valueOf(p);
+				Value val = machine != null ? machine.valueOf(p) : eval.valueOf(p);
 				printer.print(val);
 			} catch (IOException e) {
 				System.out.println("Error reading input:" + e.getMessage());
@@ -0,0 +1,115 @@
+package arithlang;
+import static arithlang.AST.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles a program to postfix code for the StackMachine: operands are
+ * pushed on a stack of doubles and each operator combines the top two
+ * entries. An n-ary expression becomes its first operand followed by one
+ * operator per remaining operand, so (- a b c) is "a b - c -". Additions and
+ * multiplications start from 0 and 1 like the Evaluator does.
+ */
+public class StackCompiler implements Visitor<Void> {
+
+	static final int PUSH = 0; // followed by an index into the constants
+	static final int ADD = 1;
+	static final int SUB = 2;
+	static final int MUL = 3;
+	static final int DIV = 4;
+
+	/** Compiled code of a program. */
+	public static class Code {
+		final int[] _code;
+		final double[] _constants;
+		final int _depth; // largest stack the code needs
+		Code(int[] code, double[] constants, int depth) {
+			_code = code;
+			_constants = constants;
+			_depth = depth;
+		}
+	}
+
+	private int[] _code;
+	private int _pc;
+	private double[] _constants;
+	private int _count;
+	private int _sp;
+	private int _depth;
+
+	public Code compile(Program p) {
+		_code = new int[64];
+		_pc = 0;
+		_constants = new double[16];
+		_count = 0;
+		_sp = 0;
+		_depth = 0;
+		p.accept(this);
+		return new Code(Arrays.copyOf(_code, _pc), Arrays.copyOf(_constants, _count), _depth);
+	}
+
+	private void emit(int word) {
+		if(_pc == _code.length)
+			_code = Arrays.copyOf(_code, 2 * _pc);
+		_code[_pc++] = word;
+	}
+
+	private void push(double v) {
+		if(_count == _constants.length)
+			_constants = Arrays.copyOf(_constants, 2 * _count);
+		_constants[_count] = v;
+		emit(PUSH);
+		emit(_count++);
+		if(++_sp > _depth)
+			_depth = _sp;
+	}
+
+	private void fold(int op, List<Exp> operands, int from) {
+		for(int i = from; i < operands.size(); i++) {
+			operands.get(i).accept(this);
+			emit(op);
+			_sp--;
+		}
+	}
+
+	@Override
+	public Void visit(NumExp e) {
+		push(e.v());
+		return null;
+	}
+
+	@Override
+	public Void visit(AddExp e) {
+		push(0);
+		fold(ADD, e.all(), 0);
+		return null;
+	}
+
+	@Override
+	public Void visit(SubExp e) {
+		e.all().get(0).accept(this);
+		fold(SUB, e.all(), 1);
+		return null;
+	}
+
+	@Override
+	public Void visit(MultExp e) {
+		push(1);
+		fold(MUL, e.all(), 0);
+		return null;
+	}
+
+	@Override
+	public Void visit(DivExp e) {
+		e.all().get(0).accept(this);
+		fold(DIV, e.all(), 1);
+		return null;
+	}
+
+	@Override
+	public Void visit(Program p) {
+		p.e().accept(this);
+		return null;
+	}
+}
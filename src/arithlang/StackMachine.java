@@ -0,0 +1,53 @@
+package arithlang;
+import static arithlang.AST.*;
+import static arithlang.StackCompiler.*;
+import static arithlang.Value.*;
+
+/**
+ * Evaluates programs compiled by the StackCompiler in a single loop over a
+ * primitive operand stack, without creating a Value for intermediate results.
+ * The stack is kept between programs and only grows when a program needs a
+ * deeper one.
+ */
+public class StackMachine {
+
+	private StackCompiler _compiler = new StackCompiler();
+	private double[] _stack = new double[64];
+
+	Value valueOf(Program p) {
+		return new NumVal(run(_compiler.compile(p)));
+	}
+
+	double run(Code compiled) {
+		if(_stack.length < compiled._depth)
+			_stack = new double[compiled._depth];
+		double[] stack = _stack;
+		double[] constants = compiled._constants;
+		int[] code = compiled._code;
+		int sp = 0;
+		for(int pc = 0; pc < code.length; pc++) {
+			switch(code[pc]) {
+			case PUSH:
+				stack[sp++] = constants[code[++pc]];
+				break;
+			case ADD:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] + stack[sp];
+				break;
+			case SUB:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] - stack[sp];
+				break;
+			case MUL:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] * stack[sp];
+				break;
+			case DIV:
+				sp--;
+				stack[sp - 1] = stack[sp - 1] / stack[sp];
+				break;
+			}
+		}
+		return stack[0];
+	}
+}
@@ -37,14 +37,20 @@ public interface AST {
 		}
 	}
 	public static abstract class Exp extends ASTNode {
-
+		/** The names, interned so that an Env can match them by reference. */
+		static List<String> intern(List<String> names) {
+			List<String> interned = new ArrayList<String>(names.size());
+			for (String name : names)
+				interned.add(name.intern());
+			return interned;
+		}
 	}
 
 	public static class VarExp extends Exp {
 		String _name;
 
 		public VarExp(String name) {
-			_name = name;
+			_name = name.intern();
 		}
 
 		public String name() {
@@ -233,7 +239,7 @@ public interface AST {
 		Exp _body;
 		
 		public LetExp(List<String> names, List<Exp> value_exps, Exp body) {
-			_names = names;
+			_names = intern(names);
 			_value_exps = value_exps;
 			_body = body;
 		}
@@ -263,7 +269,7 @@ public interface AST {
 		Exp _value_exp; 
 		
 		public DefineDecl(String name, Exp value_exp) {
-			_name = name;
+			_name = name.intern();
 			_value_exp = value_exp;
 		}
 		
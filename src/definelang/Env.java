@@ -1,7 +1,12 @@
 package definelang;
 
+import java.util.List;
+
 /**
  * Representation of an environment, which maps variables to values.
+ * Variable names are interned by the AST, so a binding is matched by
+ * comparing references rather than characters. Local environments never
+ * change once built, so threads can share them without locking.
  * 
  * @author hridesh
  *
@@ -23,32 +28,59 @@ public interface Env {
 	}
 	
 	static public class ExtendEnv implements Env {
-		private Env _saved_env; 
-		private String _var; 
-		private Value _val; 
+		private final Env _saved_env;
+		private final String _var;
+		private final Value _val;
 		public ExtendEnv(Env saved_env, String var, Value val){
 			_saved_env = saved_env;
 			_var = var;
 			_val = val;
 		}
-		public synchronized Value get (String search_var) {
-			if (search_var.equals(_var))
+		public Value get (String search_var) {
+			if (search_var == _var)
 				return _val;
 			return _saved_env.get(search_var);
 		}
 	}
+
+	/**
+	 * The bindings of one let, all in one frame: its names, a Value[] with
+	 * their values and the enclosing environment. A later name shadows an
+	 * earlier one, as in a chain of ExtendEnvs.
+	 */
+	static public class FrameEnv implements Env {
+		private final Env _saved_env;
+		private final List<String> _vars;
+		private final Value[] _vals;
+		public FrameEnv(Env saved_env, List<String> vars, Value[] vals){
+			_saved_env = saved_env;
+			_vars = vars;
+			_vals = vals;
+		}
+		public Value get (String search_var) {
+			for (int slot = _vals.length - 1; slot >= 0; slot--)
+				if (search_var == _vars.get(slot))
+					return _vals[slot];
+			return _saved_env.get(search_var);
+		}
+	}
 	
+	/**
+	 * The define'd names. Reads take no lock, so programs evaluated on
+	 * several threads do not wait for each other.
+	 */
 	static public class GlobalEnv implements Env {
-		private java.util.Hashtable<String, Value> map;
+		private final java.util.concurrent.ConcurrentHashMap<String, Value> map;
 		public GlobalEnv(){
-			map = new java.util.Hashtable<String, Value>();
+			map = new java.util.concurrent.ConcurrentHashMap<String, Value>();
 		}
-		public synchronized Value get (String search_var) {
-			if(map.containsKey(search_var))
-				return map.get(search_var);
+		public Value get (String search_var) {
+			Value val = map.get(search_var);
+			if(val != null)
+				return val;
 			throw new LookupException("No binding found for name: " + search_var);
 		}
-		public synchronized void extend (String var, Value val) {
+		public void extend (String var, Value val) {
 			map.put(var, val);
 		}
 	}	
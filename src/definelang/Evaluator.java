@@ -3,7 +3,6 @@ import static definelang.AST.*;
 import static definelang.Value.*;
 
 import java.util.List;
-import java.util.ArrayList;
 
 import definelang.Env.*;
 
@@ -88,14 +87,12 @@ public class Evaluator implements Visitor<Value> {
 	public Value visit(LetExp e, Env env) { // New for varlang.
 		List<String> names = e.names();
 		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
+		Value[] values = new Value[value_exps.size()];
 		
-		for(Exp exp : value_exps) 
-			values.add((Value)exp.accept(this, env));
+		for(int index = 0; index < values.length; index++) 
+			values[index] = (Value) value_exps.get(index).accept(this, env);
 		
-		Env new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv(new_env, names.get(index), values.get(index));
+		Env new_env = new FrameEnv(env, names, values);
 
 		return (Value) e.body().accept(this, new_env);		
 	}	
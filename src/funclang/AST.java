@@ -2,6 +2,7 @@ package funclang;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -40,20 +41,67 @@ public interface AST {
 	}
 
 	public static abstract class Exp extends ASTNode {
-
+		/** The names, interned so that an Env can match them by reference. */
+		static List<String> intern(List<String> names) {
+			List<String> interned = new ArrayList<String>(names.size());
+			for (String name : names)
+				interned.add(name.intern());
+			return interned;
+		}
+
+		/**
+		 * Operand types observed so far by a self-specializing node: none yet,
+		 * only numbers, or anything. A node only ever moves forward.
+		 */
+		public static final int UNINITIALIZED = 0;
+		public static final int NUMBER = 1;
+		public static final int GENERIC = 2;
 	}
 
+	/**
+	 * A variable reference. After the {@link funclang.Resolver} pass a local
+	 * variable carries its lexical address (frames to skip, slot in frame);
+	 * a reference to a define'd name is marked global, and keeps the name's
+	 * cell once it has been looked up.
+	 */
 	public static class VarExp extends Exp {
+		public static final int UNRESOLVED = -2;
+		public static final int GLOBAL = -1;
+
 		String _name;
+		int _depth = UNRESOLVED;
+		int _slot;
+		volatile Env.Cell _cell;
 
 		public VarExp(String name) {
-			_name = name;
+			_name = name.intern();
 		}
 
 		public String name() {
 			return _name;
 		}
 
+		public int depth() {
+			return _depth;
+		}
+
+		public int slot() {
+			return _slot;
+		}
+
+		public void resolve(int depth, int slot) {
+			_depth = depth;
+			_slot = slot;
+		}
+
+		/** The cell of this global variable in the given table. */
+		public Env.Cell cell(Env.GlobalEnv globals) {
+			Env.Cell cell = _cell;
+			if(cell == null || cell.owner() != globals)
+				_cell = cell = globals.cell(_name);
+			return cell;
+		}
+
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -120,6 +168,7 @@ public interface AST {
 
 	public static abstract class CompoundArithExp extends Exp {
 		List<Exp> _rest;
+		volatile int _state = UNINITIALIZED;
 
 		public CompoundArithExp() {
 			_rest = new ArrayList<Exp>();
@@ -164,6 +213,13 @@ public interface AST {
 			_rest.add(e);
 		}
 
+		public int state() {
+			return _state;
+		}
+
+		public void specialize(int state) {
+			_state = state;
+		}
 	}
 
 	public static class AddExp extends CompoundArithExp {
@@ -268,7 +324,7 @@ public interface AST {
 		Exp _body;
 
 		public LetExp(List<String> names, List<Exp> value_exps, Exp body) {
-			_names = names;
+			_names = intern(names);
 			_value_exps = value_exps;
 			_body = body;
 		}
@@ -303,7 +359,7 @@ public interface AST {
 		Exp _value_exp;
 
 		public DefineDecl(String name, Exp value_exp) {
-			_name = name;
+			_name = name.intern();
 			_value_exp = value_exp;
 		}
 
@@ -330,9 +386,17 @@ public interface AST {
 		List<String> _formals;
 		Exp _body;
 		NumExp _defParam;
+		ClosureCompiler _compiler;
+		ClosureCompiler.Node _code;
+		final AtomicInteger _calls = new AtomicInteger(); // counts calls until the BytecodeCompiler takes over
+		volatile java.lang.invoke.MethodHandle _kernel;
+		volatile boolean _noKernel;
+		List<String> _captured; // set by the Resolver
+		int[] _capturedDepths = new int[0];
+		int[] _capturedSlots = new int[0];
 
 		public LambdaExp(List<String> formals, Exp body, NumExp defParam) {
-			_formals = formals;
+			_formals = intern(formals);
 			_body = body;
 			_defParam = defParam;
 		}
@@ -349,6 +413,58 @@ public interface AST {
 			return _defParam;
 		}
 
+		/** Variables a closure of this lambda copies, or null to keep the whole env. */
+		public List<String> captured() {
+			return _captured;
+		}
+
+		public void clearCaptured() {
+			_captured = new ArrayList<String>();
+			_capturedDepths = new int[0];
+			_capturedSlots = new int[0];
+		}
+
+		/** Adds a variable found at (depth, slot) where closures are created. */
+		public void capture(String name, int depth, int slot) {
+			int n = _captured.size();
+			_captured.add(name);
+			_capturedDepths = java.util.Arrays.copyOf(_capturedDepths, n + 1);
+			_capturedSlots = java.util.Arrays.copyOf(_capturedSlots, n + 1);
+			_capturedDepths[n] = depth;
+			_capturedSlots[n] = slot;
+		}
+
+		/**
+		 * The env a closure keeps, made from the env it is created in: one
+		 * frame with the captured values in front of the globals. A variable
+		 * that cannot be read here is left unbound in the frame, so that it
+		 * fails only if used.
+		 */
+		public Env capture(Env env, Env globals) {
+			if(_captured == null)
+				return env;
+			if(_captured.isEmpty())
+				return globals;
+			Value[] vals = new Value[_captured.size()];
+			for(int i = 0; i < vals.length; i++)
+				try {
+					vals[i] = env.get(_capturedDepths[i], _capturedSlots[i]);
+				} catch (Env.LookupException e) {
+					vals[i] = null;
+				}
+			return new Env.FrameEnv(globals, _captured, vals);
+		}
+
+		/** The body as compiled by the given engine, or null if not compiled yet. */
+		public ClosureCompiler.Node code(ClosureCompiler compiler) {
+			return _compiler == compiler ? _code : null;
+		}
+
+		public void setCode(ClosureCompiler compiler, ClosureCompiler.Node code) {
+			_compiler = compiler;
+			_code = code;
+		}
+
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -362,6 +478,8 @@ public interface AST {
 	public static class CallExp extends Exp {
 		Exp _operator;
 		List<Exp> _operands;
+		boolean _tail;
+		volatile InlineCache _cache;
 
 		public CallExp(Exp operator, List<Exp> operands) {
 			_operator = operator;
@@ -376,6 +494,23 @@ public interface AST {
 			return _operands;
 		}
 
+		/** True if the value of this call is the value of the enclosing lambda body. */
+		public boolean tail() {
+			return _tail;
+		}
+
+		public void setTail(boolean tail) {
+			_tail = tail;
+		}
+
+		/** The inline cache of this call site, created on first use. */
+		public InlineCache cache() {
+			InlineCache cache = _cache;
+			if(cache == null)
+				_cache = cache = new InlineCache(); // a cache lost to a racing thread only costs misses
+			return cache;
+		}
+
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -436,6 +571,7 @@ public interface AST {
 	public static abstract class BinaryComparator extends Exp {
 		private Exp _first_exp;
 		private Exp _second_exp;
+		volatile int _state = UNINITIALIZED;
 
 		BinaryComparator(Exp first_exp, Exp second_exp) {
 			_first_exp = first_exp;
@@ -449,6 +585,14 @@ public interface AST {
 		public Exp second_exp() {
 			return _second_exp;
 		}
+
+		public int state() {
+			return _state;
+		}
+
+		public void specialize(int state) {
+			_state = state;
+		}
 	}
 
 	/**
@@ -886,6 +1030,38 @@ public interface AST {
 		}
 	}
 
+	/** An operation on whole arrays, one of those in {@link ArrayOps}. */
+	public static class ArrayOpExp extends Exp {
+		private int _op;
+		private List<Exp> _args;
+
+		public ArrayOpExp(String name, List<Exp> _args) {
+			this(ArrayOps.lookup(name), _args);
+		}
+
+		public ArrayOpExp(int _op, List<Exp> _args) {
+			this._op = _op;
+			this._args = _args;
+		}
+
+		public int op() {
+			return _op;
+		}
+
+		public String name() {
+			return ArrayOps.NAMES[_op];
+		}
+
+		public List<Exp> args() {
+			return _args;
+		}
+
+		@Override
+		public Object accept(Visitor visitor, Env env) {
+			return visitor.visit(this, env);
+		}
+	}
+
 	public interface Visitor <T> {
 		// This interface should contain a signature for each concrete AST node.
 		public T visit(AST.AddExp e, Env env);
@@ -927,5 +1103,6 @@ public interface AST {
 		public T visit(AST.ArrayExp e, Env env);
 		public T visit(AST.ArrAssignExp e, Env env);
 		public T visit(AST.IndexExp e, Env env);
+		public T visit(AST.ArrayOpExp e, Env env);
 	}
 }
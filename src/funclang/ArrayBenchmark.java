@@ -0,0 +1,84 @@
+package funclang;
+
+import funclang.AST.*;
+
+/**
+ * Times array-sum, array-dot, array-scale, array-axpy, matmul and + on two
+ * arrays against the funclang loops that compute the same thing with index
+ * and assign, on the Evaluator. Each is run a few times to warm up and then
+ * timed over enough repetitions to take a while; the report is the time per
+ * call.
+ *
+ * The kernels used are named in the first line. To time the Vector API ones,
+ * compile vector/funclang/VectorKernels.java and run with --add-modules
+ * jdk.incubator.vector (see VectorKernels). Run with an optional vector
+ * length and matrix size, e.g. java funclang.ArrayBenchmark 100000 64
+ */
+public class ArrayBenchmark {
+
+	static final String[] DEFINES = {
+		"(define sumloop (lambda (a i n acc) (if (> i n) acc (sumloop a (+ i 1) n (+ acc (index a i))))))",
+		"(define dotloop (lambda (a b i n acc) (if (> i n) acc (dotloop a b (+ i 1) n (+ acc (* (index a i) (index b i)))))))",
+		"(define scaleloop (lambda (s x i n) (if (> i n) x (let ((u (assign x i (* s (index x i))))) (scaleloop s x (+ i 1) n)))))",
+		"(define axpyloop (lambda (s x y i n) (if (> i n) y (let ((u (assign y i (+ (index y i) (* s (index x i)))))) (axpyloop s x y (+ i 1) n)))))",
+		"(define mmk (lambda (a b m i j k acc) (if (> k m) acc (mmk a b m i j (+ k 1) (+ acc (* (index a i k) (index b k j)))))))",
+		"(define mmj (lambda (a b c m i j) (if (> j m) c (let ((u (assign c i j (mmk a b m i j 1 0)))) (mmj a b c m i (+ j 1))))))",
+		"(define mmi (lambda (a b c m i) (if (> i m) c (let ((u (mmj a b c m i 1))) (mmi a b c m (+ i 1))))))",
+		"(define mmloop (lambda (a b m) (mmi a b (array m m) m 1)))",
+		"(define addi (lambda (x y z i n) (if (> i n) z (let ((u (assign z i (+ (index x i) (index y i))))) (addi x y z (+ i 1) n)))))",
+		"(define addloop (lambda (x y n) (addi x y (array n) 1 n)))",
+	};
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int m = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		for(String define : DEFINES)
+			eval.valueOf(reader.parse(define));
+		eval.valueOf(reader.parse("(define x (array " + n + "))"));
+		eval.valueOf(reader.parse("(define y (array " + n + "))"));
+		eval.valueOf(reader.parse("(define u (array-set-range x 1 " + n + " 1.5))"));
+		eval.valueOf(reader.parse("(define v (array-set-range y 1 " + n + " 0.5))"));
+		eval.valueOf(reader.parse("(define a (array " + m + " " + m + "))"));
+		eval.valueOf(reader.parse("(define b (array " + m + " " + m + "))"));
+		eval.valueOf(reader.parse("(define w (array-set-range a 1 " + m * m + " 0.25))"));
+		eval.valueOf(reader.parse("(define z (array-set-range b 1 " + m * m + " 2))"));
+
+		System.out.printf("kernels: %s, n = %d, matrices %d by %d%n", ArrayKernels.KERNELS.name(), n, m, m);
+		System.out.printf("%-12s %14s %14s %10s%n", "", "loop ms", "builtin ms", "speedup");
+		// Scaling by 1 keeps the values the same from one repetition to the next.
+		compare(eval, "array-sum", "(sumloop x 1 " + n + " 0)", "(array-sum x)");
+		compare(eval, "array-dot", "(dotloop x y 1 " + n + " 0)", "(array-dot x y)");
+		compare(eval, "array-scale", "(scaleloop 1 x 1 " + n + ")", "(array-scale 1 x)");
+		compare(eval, "array-axpy", "(axpyloop 0 x y 1 " + n + ")", "(array-axpy 0 x y)");
+		compare(eval, "matmul", "(mmloop a b " + m + ")", "(matmul a b)");
+		compare(eval, "+", "(addloop x y " + n + ")", "(+ x y)");
+	}
+
+	static void compare(Evaluator eval, String name, String loop, String builtin) {
+		double loopMs = time(eval, loop);
+		double builtinMs = time(eval, builtin);
+		System.out.printf("%-12s %14.3f %14.4f %9.0fx%n", name, loopMs, builtinMs, loopMs / builtinMs);
+	}
+
+	/** Milliseconds per evaluation of the program, after warming up. */
+	static double time(Evaluator eval, String program) {
+		Program p = eval._reader.parse(program);
+		for(int i = 0; i < 5; i++)
+			check(eval.valueOf(p));
+		int reps = 0;
+		long start = System.nanoTime(), elapsed;
+		do {
+			check(eval.valueOf(p));
+			reps++;
+		} while((elapsed = System.nanoTime() - start) < 500000000L);
+		return elapsed / 1e6 / reps;
+	}
+
+	static void check(Value result) {
+		if(result instanceof Value.DynamicError)
+			throw new IllegalStateException(result.tostring());
+	}
+}
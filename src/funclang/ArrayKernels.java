@@ -0,0 +1,82 @@
+package funclang;
+
+/**
+ * The loops behind array-sum, array-dot, array-scale, array-axpy and matmul.
+ * Each works on a run of n doubles starting at an offset, so the callers hand
+ * over the storage of contiguous arrays directly.
+ *
+ * These are the scalar versions. If funclang.VectorKernels, which uses the
+ * jdk.incubator.vector API, has been compiled from vector/ and the JVM was
+ * started with --add-modules jdk.incubator.vector, load() returns it instead;
+ * otherwise, or with -Dfunclang.vector=false, it falls back to this class.
+ */
+public class ArrayKernels {
+
+	static final ArrayKernels KERNELS = load();
+
+	static ArrayKernels load() {
+		if(!Boolean.parseBoolean(System.getProperty("funclang.vector", "true")))
+			return new ArrayKernels();
+		try {
+			return (ArrayKernels) Class.forName("funclang.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch(Throwable e) { // not compiled, or the module is not there
+			return new ArrayKernels();
+		}
+	}
+
+	public String name() {
+		return "scalar";
+	}
+
+	double sum(double[] a, int ao, int n) {
+		// Four running sums, so the additions do not wait on each other.
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(; i + 3 < n; i += 4) {
+			s0 += a[ao + i];
+			s1 += a[ao + i + 1];
+			s2 += a[ao + i + 2];
+			s3 += a[ao + i + 3];
+		}
+		for(; i < n; i++)
+			s0 += a[ao + i];
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	double dot(double[] a, int ao, double[] b, int bo, int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(; i + 3 < n; i += 4) {
+			s0 += a[ao + i] * b[bo + i];
+			s1 += a[ao + i + 1] * b[bo + i + 1];
+			s2 += a[ao + i + 2] * b[bo + i + 2];
+			s3 += a[ao + i + 3] * b[bo + i + 3];
+		}
+		for(; i < n; i++)
+			s0 += a[ao + i] * b[bo + i];
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/** x = s * x */
+	void scale(double s, double[] x, int xo, int n) {
+		for(int i = 0; i < n; i++)
+			x[xo + i] *= s;
+	}
+
+	/** y = s * x + y */
+	void axpy(double s, double[] x, int xo, double[] y, int yo, int n) {
+		for(int i = 0; i < n; i++)
+			y[yo + i] += s * x[xo + i];
+	}
+
+	/**
+	 * c = a b for an m by k matrix a and a k by n matrix b, all row-major; c
+	 * starts out zero. Row i of c is built as the sum of the rows of b scaled
+	 * by row i of a, so the inner loop runs along rows.
+	 */
+	void matmul(double[] a, int ao, double[] b, int bo, double[] c, int co, int m, int k, int n) {
+		for(int i = 0; i < m; i++)
+			for(int p = 0; p < k; p++)
+				axpy(a[ao + i * k + p], b, bo + p * n, c, co + i * n, n);
+	}
+}
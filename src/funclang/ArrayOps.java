@@ -0,0 +1,397 @@
+package funclang;
+
+import java.util.Arrays;
+
+import funclang.Evaluator.UnexpectedValue;
+import funclang.Value.*;
+
+/**
+ * Operations on whole arrays, written like the other forms, e.g.
+ * (array-get-row a 2). Each does in one step what would otherwise take a
+ * loop of index or assign expressions. The engines evaluate the arguments
+ * their own way and then call apply.
+ *
+ * Slices, transposes and most reshapes are views: they share the elements
+ * of the array they are made from, so nothing is copied and an assign to
+ * either shows in both.
+ *
+ * The numeric operations from array-sum on are procedures in the initial
+ * environment rather than forms, so they can be passed around like any
+ * other; their loops are in ArrayKernels. Like BLAS, array-scale and
+ * array-axpy update their last argument in place.
+ *
+ * The arithmetic forms +, -, * and / also take arrays; see arith.
+ */
+public class ArrayOps {
+
+	static final int GET_ROW = 0;   // (array-get-row a i)         a copy of the elements of a whose first index is i
+	static final int SET_RANGE = 1; // (array-set-range a i j v)   sets elements i to j of a, counted from 1 in
+	                                //                             row-major order, to the number v or to the
+	                                //                             elements of the array v; returns a
+	static final int SLICE = 2;     // (array-slice a i1 j1 ... in jn)  the view of the elements of a with
+	                                //                             indices i1 to j1, ..., in to jn
+	static final int TRANSPOSE = 3; // (array-transpose a)         the view of a with its indices reversed
+	static final int RESHAPE = 4;   // (array-reshape a d1 ... dn) the elements of a in row-major order, as
+	                                //                             an array with dimensions d1 ... dn; a view
+	                                //                             unless a is a view that skips elements
+	static final int SUM = 5;       // (array-sum a)               the sum of the elements of a
+	static final int DOT = 6;       // (array-dot a b)             the sum of the products of the elements of
+	                                //                             a and b, which have the same dimensions
+	static final int SCALE = 7;     // (array-scale s x)           multiplies the elements of x by s; returns x
+	static final int AXPY = 8;      // (array-axpy s x y)          adds s times the elements of x to those of y,
+	                                //                             which has the same dimensions; returns y
+	static final int MATMUL = 9;    // (matmul a b)                the matrix product of a and b
+
+	static final String[] NAMES = { "array-get-row", "array-set-range", "array-slice", "array-transpose", "array-reshape",
+			"array-sum", "array-dot", "array-scale", "array-axpy", "matmul" };
+	static final int[] ARITY = { 2, 4, -1, 1, -1, 1, 2, 2, 3, 2 }; // -1 if it depends on the array
+
+	/** The number of the operation with the given name, or -1. */
+	static int lookup(String name) {
+		for(int op = 0; op < NAMES.length; op++)
+			if(NAMES[op].equals(name))
+				return op;
+		return -1;
+	}
+
+	static Value apply(int op, Value[] args) {
+		for(Value arg : args)
+			if(arg instanceof DynamicError)
+				return arg;
+		if(ARITY[op] >= 0 && args.length != ARITY[op])
+			return new DynamicError("Error: " + NAMES[op] + " takes " + ARITY[op] + " arguments.");
+		if(op == SCALE || op == AXPY)
+			return update(op, args);
+		if(args.length == 0 || !(args[0] instanceof ArrayVal))
+			return new DynamicError("Error: First argument must be an array.");
+		ArrayVal arr = (ArrayVal) args[0];
+		try {
+			switch(op) {
+			case GET_ROW: return getRow(arr, args[1]);
+			case SET_RANGE: return setRange(arr, args[1], args[2], args[3]);
+			case SLICE: return slice(arr, args);
+			case TRANSPOSE: return transpose(arr);
+			case RESHAPE: return reshape(arr, args);
+			case SUM: return sum(arr);
+			case DOT: return dot(arr, args[1]);
+			case MATMUL: return matmul(arr, args[1]);
+			}
+		} catch (UnexpectedValue u) {
+			return u.value();
+		}
+		throw new IllegalArgumentException("No array operation " + op);
+	}
+
+	private static Value getRow(ArrayVal arr, Value i) {
+		int[] dims = arr.dims();
+		if(dims.length < 2)
+			return new DynamicError("Error: array-get-row needs an array of two or more dimensions.");
+		int row = index(i, dims[0]);
+		int[] strides = arr.strides();
+		ArrayVal view = new ArrayVal(arr.elems(), arr.offset() + (row - 1) * strides[0],
+				Arrays.copyOfRange(dims, 1, dims.length), Arrays.copyOfRange(strides, 1, strides.length));
+		ArrayVal result = new ArrayVal(view.dims());
+		copy(view, result.elems(), 0);
+		return result;
+	}
+
+	private static Value setRange(ArrayVal arr, Value i, Value j, Value v) {
+		int size = arr.size();
+		int start = index(i, size) - 1, end = index(j, size);
+		if(end < start + 1)
+			return new DynamicError("Error: A range cannot end before it starts.");
+		if(v instanceof ArrayVal && ((ArrayVal) v).size() != end - start)
+			return new DynamicError("Error: The array does not have as many elements as the range.");
+		if(!(v instanceof NumVal || v instanceof ArrayVal))
+			return new DynamicError("Error: Current functionality allows only numeric arrays.");
+
+		double[] elems = arr.elems();
+		boolean contiguous = arr.isContiguous();
+		if(v instanceof NumVal && contiguous)
+			Arrays.fill(elems, arr.offset() + start, arr.offset() + end, ((NumVal) v).v());
+		else if(v instanceof NumVal)
+			for(int k = start; k < end; k++)
+				elems[arr.at(k)] = ((NumVal) v).v();
+		else if(contiguous && ((ArrayVal) v).elems() != elems)
+			copy((ArrayVal) v, elems, arr.offset() + start);
+		else {
+			double[] vals = new double[end - start]; // v may be a view of arr itself
+			copy((ArrayVal) v, vals, 0);
+			for(int k = start; k < end; k++)
+				elems[arr.at(k)] = vals[k - start];
+		}
+		return arr;
+	}
+
+	private static Value slice(ArrayVal arr, Value[] args) {
+		int[] dims = arr.dims();
+		if(args.length != 1 + 2 * dims.length)
+			return new DynamicError("Error: array-slice takes the array and a first and last index for each of its dimensions.");
+		int[] strides = arr.strides();
+		int offset = arr.offset();
+		int[] sliced = new int[dims.length];
+		for(int d = 0; d < dims.length; d++) {
+			int from = index(args[1 + 2 * d], dims[d]), to = index(args[2 + 2 * d], dims[d]);
+			if(to < from)
+				return new DynamicError("Error: A range cannot end before it starts.");
+			offset += (from - 1) * strides[d];
+			sliced[d] = to - from + 1;
+		}
+		return new ArrayVal(arr.elems(), offset, sliced, strides.clone());
+	}
+
+	private static Value transpose(ArrayVal arr) {
+		int[] dims = arr.dims(), strides = arr.strides();
+		int n = dims.length;
+		int[] tdims = new int[n], tstrides = new int[n];
+		for(int d = 0; d < n; d++) {
+			tdims[d] = dims[n - 1 - d];
+			tstrides[d] = strides[n - 1 - d];
+		}
+		return new ArrayVal(arr.elems(), arr.offset(), tdims, tstrides);
+	}
+
+	private static Value reshape(ArrayVal arr, Value[] args) {
+		int[] dims = new int[args.length - 1];
+		for(int d = 0; d < dims.length; d++) {
+			Value val = args[d + 1];
+			if(!(val instanceof NumVal) || ((NumVal) val).v() != Math.floor(((NumVal) val).v()))
+				return new DynamicError("Error: Array sizes are not ints.");
+			dims[d] = (int) ((NumVal) val).v();
+			if(dims[d] <= 0)
+				return new DynamicError("Error: Array sizes cannot be negative.");
+		}
+		if(ArrayVal.size(dims) != arr.size())
+			return new DynamicError("Error: The new dimensions do not have as many elements as the array.");
+		if(arr.isContiguous())
+			return new ArrayVal(arr.elems(), arr.offset(), dims, ArrayVal.rowMajor(dims));
+		ArrayVal result = new ArrayVal(dims);
+		copy(arr, result.elems(), 0);
+		return result;
+	}
+
+	private static Value sum(ArrayVal arr) {
+		ArrayVal a = contiguous(arr);
+		return new NumVal(ArrayKernels.KERNELS.sum(a.elems(), a.offset(), a.size()));
+	}
+
+	private static Value dot(ArrayVal arr, Value other) {
+		if(!(other instanceof ArrayVal) || !Arrays.equals(arr.dims(), ((ArrayVal) other).dims()))
+			return new DynamicError("Error: array-dot needs two arrays with the same dimensions.");
+		ArrayVal a = contiguous(arr), b = contiguous((ArrayVal) other);
+		return new NumVal(ArrayKernels.KERNELS.dot(a.elems(), a.offset(), b.elems(), b.offset(), a.size()));
+	}
+
+	/** array-scale and array-axpy, which take the number first. */
+	private static Value update(int op, Value[] args) {
+		if(!(args[0] instanceof NumVal))
+			return new DynamicError("Error: First argument must be a number.");
+		double s = ((NumVal) args[0]).v();
+		for(int i = 1; i < args.length; i++)
+			if(!(args[i] instanceof ArrayVal))
+				return new DynamicError("Error: " + NAMES[op] + " takes a number and then arrays.");
+		ArrayVal x = (ArrayVal) args[1];
+		if(op == SCALE) {
+			if(x.isContiguous())
+				ArrayKernels.KERNELS.scale(s, x.elems(), x.offset(), x.size());
+			else
+				for(int k = 0; k < x.size(); k++)
+					x.elems()[x.at(k)] *= s;
+			return x;
+		}
+		ArrayVal y = (ArrayVal) args[2];
+		if(!Arrays.equals(x.dims(), y.dims()))
+			return new DynamicError("Error: array-axpy needs two arrays with the same dimensions.");
+		if(x.elems() == y.elems() || !y.isContiguous()) // may overlap, or y skips elements
+			x = copyOf(x);
+		if(y.isContiguous()) {
+			x = contiguous(x);
+			ArrayKernels.KERNELS.axpy(s, x.elems(), x.offset(), y.elems(), y.offset(), y.size());
+		} else
+			for(int k = 0; k < y.size(); k++)
+				y.elems()[y.at(k)] += s * x.elems()[k];
+		return y;
+	}
+
+	private static Value matmul(ArrayVal arr, Value other) {
+		if(arr.dims().length != 2 || !(other instanceof ArrayVal) || ((ArrayVal) other).dims().length != 2)
+			return new DynamicError("Error: matmul needs two arrays of two dimensions.");
+		ArrayVal a = contiguous(arr), b = contiguous((ArrayVal) other);
+		int m = a.dims()[0], k = a.dims()[1], n = b.dims()[1];
+		if(b.dims()[0] != k)
+			return new DynamicError("Error: The number of columns of the first array must be the number of rows of the second.");
+		if(ArrayVal.size(new int[] { m, n }) < 0)
+			return new DynamicError("Error: Array sizes are too large.");
+		ArrayVal c = new ArrayVal(new int[] { m, n });
+		ArrayKernels.KERNELS.matmul(a.elems(), a.offset(), b.elems(), b.offset(), c.elems(), 0, m, k, n);
+		return c;
+	}
+
+	/**
+	 * a op b, where op is one of + - * / and a and b are numbers or arrays.
+	 * As in NumPy, the dimensions of two arrays are matched from the last one
+	 * back, and a dimension of 1, or a missing one, is repeated to fit the
+	 * other; a number repeats to fit anything. The result is a new array
+	 * unless both are numbers. Other operands, and arrays whose dimensions do
+	 * not fit, raise a ClassCastException, as the arithmetic on numbers does.
+	 */
+	static Value arith(char op, Value a, Value b) {
+		if(a instanceof NumVal && b instanceof NumVal)
+			return new NumVal(arith(op, ((NumVal) a).v(), ((NumVal) b).v()));
+		ArrayVal x = array(operand(a)), y = array(operand(b));
+		int[] dims = broadcast(x.dims(), y.dims());
+		if(dims == null)
+			throw new ClassCastException("Error: Arrays of dimensions " + Arrays.toString(x.dims())
+					+ " and " + Arrays.toString(y.dims()) + " cannot be combined.");
+		if(ArrayVal.size(dims) < 0)
+			return new DynamicError("Error: Array sizes are too large.");
+		ArrayVal result = new ArrayVal(dims);
+		double[] to = result.elems();
+		int size = result.size();
+		int xs = flat(x, dims), ys = flat(y, dims);
+		if(xs >= 0 && ys >= 0) {
+			combine(op, x.elems(), x.offset(), xs, y.elems(), y.offset(), ys, to, 0, size);
+			return result;
+		}
+
+		// Row by row along the last dimension, counting through the others.
+		int rank = dims.length, last = dims[rank - 1];
+		int[] sx = strides(x, dims), sy = strides(y, dims);
+		int[] at = new int[rank];
+		int xi = x.offset(), yi = y.offset();
+		for(int ti = 0; ti < size; ti += last) {
+			combine(op, x.elems(), xi, sx[rank - 1], y.elems(), yi, sy[rank - 1], to, ti, last);
+			for(int d = rank - 2; d >= 0; d--) {
+				if(++at[d] < dims[d]) {
+					xi += sx[d];
+					yi += sy[d];
+					break;
+				}
+				at[d] = 0;
+				xi -= (dims[d] - 1) * sx[d];
+				yi -= (dims[d] - 1) * sy[d];
+			}
+		}
+		return result;
+	}
+
+	static double arith(char op, double a, double b) {
+		switch(op) {
+		case '+': return a + b;
+		case '-': return a - b;
+		case '*': return a * b;
+		case '/': return a / b;
+		}
+		throw new IllegalArgumentException("No arithmetic operation " + op);
+	}
+
+	/** v if it is a number or an array; otherwise raises the ClassCastException of (NumVal) v. */
+	static Value operand(Value v) {
+		if(!(v instanceof ArrayVal))
+			((NumVal) v).v();
+		return v;
+	}
+
+	/** An array, or a number as an array of no dimensions. */
+	private static ArrayVal array(Value v) {
+		if(v instanceof ArrayVal)
+			return (ArrayVal) v;
+		return new ArrayVal(new double[] { ((NumVal) v).v() }, 0, new int[0], new int[0]);
+	}
+
+	/** The dimensions a and b broadcast to, or null if they do not fit. */
+	private static int[] broadcast(int[] a, int[] b) {
+		int[] dims = new int[Math.max(a.length, b.length)];
+		for(int d = 1; d <= dims.length; d++) {
+			int da = d <= a.length ? a[a.length - d] : 1;
+			int db = d <= b.length ? b[b.length - d] : 1;
+			if(da != db && da != 1 && db != 1)
+				return null;
+			dims[dims.length - d] = Math.max(da, db);
+		}
+		return dims;
+	}
+
+	/** The strides by which to step through arr to broadcast it to dims. */
+	private static int[] strides(ArrayVal arr, int[] dims) {
+		int[] own = arr.dims(), strides = new int[dims.length];
+		int skip = dims.length - own.length;
+		for(int d = skip; d < dims.length; d++)
+			if(own[d - skip] != 1)
+				strides[d] = arr.strides()[d - skip];
+		return strides;
+	}
+
+	/**
+	 * The stride by which arr can be read as one run when broadcast to dims: 1
+	 * if it has those dimensions and is contiguous, 0 if it is a number, and
+	 * otherwise -1.
+	 */
+	private static int flat(ArrayVal arr, int[] dims) {
+		if(arr.dims().length == 0)
+			return 0;
+		return Arrays.equals(arr.dims(), dims) && arr.isContiguous() ? 1 : -1;
+	}
+
+	/** to[ti...] = x[xi...] op y[yi...] for n elements, stepping x by xs and y by ys. */
+	private static void combine(char op, double[] x, int xi, int xs, double[] y, int yi, int ys, double[] to, int ti, int n) {
+		int end = ti + n;
+		switch(op) {
+		case '+':
+			for(; ti < end; ti++, xi += xs, yi += ys)
+				to[ti] = x[xi] + y[yi];
+			break;
+		case '-':
+			for(; ti < end; ti++, xi += xs, yi += ys)
+				to[ti] = x[xi] - y[yi];
+			break;
+		case '*':
+			for(; ti < end; ti++, xi += xs, yi += ys)
+				to[ti] = x[xi] * y[yi];
+			break;
+		case '/':
+			for(; ti < end; ti++, xi += xs, yi += ys)
+				to[ti] = x[xi] / y[yi];
+			break;
+		default:
+			throw new IllegalArgumentException("No arithmetic operation " + op);
+		}
+	}
+
+	/** arr, or a copy of it if it is a view that skips elements. */
+	private static ArrayVal contiguous(ArrayVal arr) {
+		return arr.isContiguous() ? arr : copyOf(arr);
+	}
+
+	private static ArrayVal copyOf(ArrayVal arr) {
+		ArrayVal result = new ArrayVal(arr.dims().clone());
+		copy(arr, result.elems(), 0);
+		return result;
+	}
+
+	/** Copies the elements of arr, in row-major order, to to from position at on. */
+	private static void copy(ArrayVal arr, double[] to, int at) {
+		int size = arr.size();
+		if(arr.isContiguous()) {
+			System.arraycopy(arr.elems(), arr.offset(), to, at, size);
+			return;
+		}
+		double[] elems = arr.elems();
+		for(int k = 0; k < size; k++)
+			to[at + k] = elems[arr.at(k)];
+	}
+
+	/**
+	 * A 1-based index no larger than size. A bad one is thrown as an
+	 * UnexpectedValue holding the error, as the Evaluator does, and apply
+	 * returns it.
+	 */
+	private static int index(Value val, int size) {
+		if(!(val instanceof NumVal) || ((NumVal) val).v() != Math.floor(((NumVal) val).v()) || (int) ((NumVal) val).v() <= 0)
+			throw new UnexpectedValue(new DynamicError("Error: Array indices should be positive integers."));
+		int index = (int) ((NumVal) val).v();
+		if(index > size)
+			throw new UnexpectedValue(new DynamicError("Error: Indices should not exceed their relevant array size."));
+		return index;
+	}
+}
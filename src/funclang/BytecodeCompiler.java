@@ -0,0 +1,575 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles hot numeric lambdas to JVM bytecode, loaded as hidden classes so
+ * HotSpot can inline them and keep intermediate numbers in registers.
+ *
+ * A lambda is compiled to a static method invoke(Env globals, double...) when
+ * it takes at most MAX_ARITY numbers and its body only uses numbers, local
+ * variables, arithmetic, comparisons, if, let and calls to define'd names.
+ * Anything else stays with the tree-walking Evaluator. Compiled code only ever
+ * calls other compiled code, so it has no side effects; when a call cannot be
+ * served by compiled code it throws Deopt and the Evaluator simply evaluates
+ * the original call again.
+ */
+public class BytecodeCompiler {
+
+	static final int THRESHOLD = 50; // calls before a lambda is compiled
+	static final int MAX_ARITY = 4;
+
+	private static final String KERNEL = "funclang/Kernel";
+	private static final String SITE = "funclang/BytecodeCompiler$Site";
+	private static final String ENV = "Lfunclang/Env;";
+
+	@SuppressWarnings("serial")
+	static class Deopt extends RuntimeException {
+		Deopt() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Deopt DEOPT = new Deopt();
+
+	@SuppressWarnings("serial")
+	private static class Unsupported extends Exception {
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Unsupported UNSUPPORTED = new Unsupported();
+
+	/**
+	 * Runs the compiled form of a lambda, compiling it once it is hot. Returns
+	 * null when the call has to be evaluated by the Evaluator instead.
+	 */
+	static Value invoke(LambdaExp lambda, List<Value> actuals, Env globals) {
+		MethodHandle kernel = lambda._kernel;
+		if(kernel == null) {
+			if(lambda._noKernel || lambda._calls.incrementAndGet() < THRESHOLD)
+				return null;
+			kernel = compile(lambda, globals);
+			if(kernel == null)
+				return null;
+		}
+		if(actuals.size() != lambda.formals().size())
+			return null;
+		double[] args = new double[actuals.size()];
+		for(int i = 0; i < args.length; i++) {
+			Value actual = actuals.get(i);
+			if(!(actual instanceof NumVal))
+				return null;
+			args[i] = ((NumVal) actual).v();
+		}
+		try {
+			return new NumVal(call(kernel, globals, args));
+		} catch (Deopt d) {
+			return null;
+		} catch (StackOverflowError err) {
+			// Compiled code is pure, so the Evaluator can safely start over.
+			lambda._kernel = null;
+			lambda._noKernel = true;
+			return null;
+		}
+	}
+
+	private static double call(MethodHandle kernel, Env globals, double[] args) {
+		try {
+			switch(args.length) {
+			case 0: return (double) kernel.invokeExact(globals);
+			case 1: return (double) kernel.invokeExact(globals, args[0]);
+			case 2: return (double) kernel.invokeExact(globals, args[0], args[1]);
+			case 3: return (double) kernel.invokeExact(globals, args[0], args[1], args[2]);
+			default: return (double) kernel.invokeExact(globals, args[0], args[1], args[2], args[3]);
+			}
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * Compiles a lambda, or returns null and remembers that it cannot be. Threads
+	 * that reach the threshold together compile it only once.
+	 */
+	static MethodHandle compile(LambdaExp lambda, Env globals) {
+		synchronized(lambda) {
+			if(lambda._kernel != null || lambda._noKernel)
+				return lambda._kernel;
+			try {
+				lambda._kernel = new Assembler(lambda, globals).define();
+			} catch (Unsupported e) {
+				lambda._noKernel = true;
+			}
+			return lambda._kernel;
+		}
+	}
+
+	/**
+	 * A call from compiled code to a define'd name. The target is looked up
+	 * again whenever the global environment has changed, so redefining a name
+	 * in the REPL takes effect immediately.
+	 */
+	public static final class Site {
+		private final String _name;
+		private final int _arity;
+		private final LambdaExp _owner;
+		private Env _globals;
+		private int _version;
+		private boolean _self;
+		private LambdaExp _callee;
+		private MethodHandle _target;
+
+		Site(String name, int arity, LambdaExp owner) {
+			_name = name;
+			_arity = arity;
+			_owner = owner;
+		}
+
+		private void refresh(Env globals) {
+			if(globals == _globals && ((Env.GlobalEnv) globals).version() == _version)
+				return;
+			Value target;
+			try {
+				target = globals.get(_name);
+			} catch (Env.LookupException e) {
+				target = null;
+			}
+			_globals = globals;
+			_version = ((Env.GlobalEnv) globals).version();
+			_self = false;
+			_callee = null;
+			_target = null;
+			if(target instanceof FunVal) {
+				LambdaExp lambda = ((FunVal) target).lambda();
+				_self = lambda == _owner;
+				if(lambda != null && lambda.formals().size() == _arity)
+					_callee = lambda;
+			}
+		}
+
+		public boolean isSelf(Env globals) {
+			refresh(globals);
+			return _self;
+		}
+
+		private MethodHandle target(Env globals) {
+			refresh(globals);
+			if(_target == null && _callee != null)
+				_target = compile(_callee, globals);
+			if(_target != null)
+				return _target;
+			// The caller depends on code that cannot be compiled; stop using it.
+			_owner._kernel = null;
+			_owner._noKernel = true;
+			throw DEOPT;
+		}
+
+		public double call0(Env globals) throws Throwable {
+			return (double) target(globals).invokeExact(globals);
+		}
+
+		public double call1(Env globals, double a0) throws Throwable {
+			return (double) target(globals).invokeExact(globals, a0);
+		}
+
+		public double call2(Env globals, double a0, double a1) throws Throwable {
+			return (double) target(globals).invokeExact(globals, a0, a1);
+		}
+
+		public double call3(Env globals, double a0, double a1, double a2) throws Throwable {
+			return (double) target(globals).invokeExact(globals, a0, a1, a2);
+		}
+
+		public double call4(Env globals, double a0, double a1, double a2, double a3) throws Throwable {
+			return (double) target(globals).invokeExact(globals, a0, a1, a2, a3);
+		}
+	}
+
+	private static String descriptor(int arity) {
+		StringBuilder d = new StringBuilder("(" + ENV);
+		for(int i = 0; i < arity; i++)
+			d.append('D');
+		return d.append(")D").toString();
+	}
+
+	/** Constant pool of the class being generated. */
+	private static class Pool {
+		private ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		private Map<String, Integer> _entries = new HashMap<>();
+		private int _count = 1;
+
+		private int entry(String key, int size, byte[] data) {
+			Integer index = _entries.get(key);
+			if(index != null)
+				return index;
+			_bytes.write(data, 0, data.length);
+			_entries.put(key, _count);
+			_count += size;
+			return _count - size;
+		}
+
+		private byte[] bytes(int tag, int... u2s) {
+			byte[] data = new byte[1 + 2 * u2s.length];
+			data[0] = (byte) tag;
+			for(int i = 0; i < u2s.length; i++) {
+				data[1 + 2 * i] = (byte) (u2s[i] >> 8);
+				data[2 + 2 * i] = (byte) u2s[i];
+			}
+			return data;
+		}
+
+		int utf8(String s) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			try {
+				DataOutputStream out = new DataOutputStream(data);
+				out.writeByte(1);
+				out.writeUTF(s);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return entry("U" + s, 1, data.toByteArray());
+		}
+
+		int cls(String name) {
+			int n = utf8(name);
+			return entry("C" + name, 1, bytes(7, n));
+		}
+
+		private int member(int tag, String owner, String name, String desc) {
+			int c = cls(owner);
+			int n = utf8(name);
+			int d = utf8(desc);
+			int nt = entry("N" + name + ":" + desc, 1, bytes(12, n, d));
+			return entry(tag + owner + "." + name + ":" + desc, 1, bytes(tag, c, nt));
+		}
+
+		int field(String owner, String name, String desc) {
+			return member(9, owner, name, desc);
+		}
+
+		int method(String owner, String name, String desc) {
+			return member(10, owner, name, desc);
+		}
+
+		int number(double v) {
+			long bits = Double.doubleToRawLongBits(v);
+			byte[] data = new byte[9];
+			data[0] = 6;
+			for(int i = 0; i < 8; i++)
+				data[1 + i] = (byte) (bits >> (56 - 8 * i));
+			return entry("D" + bits, 2, data);
+		}
+	}
+
+	/** Emits the kernel class for one lambda. */
+	private static class Assembler {
+		private LambdaExp _lambda;
+		private Env _globals;
+		private Pool _pool = new Pool();
+		private ByteArrayOutputStream _code = new ByteArrayOutputStream();
+		private List<Site> _sites = new ArrayList<>();
+		private List<int[]> _frames = new ArrayList<>(); // JVM local of each slot, innermost last
+		private int _stack, _maxStack, _locals;
+
+		Assembler(LambdaExp lambda, Env globals) {
+			_lambda = lambda;
+			_globals = globals;
+		}
+
+		MethodHandle define() throws Unsupported {
+			int arity = _lambda.formals().size();
+			if(_lambda.defParam() != null || arity > MAX_ARITY)
+				throw UNSUPPORTED;
+			int[] params = new int[arity];
+			_locals = 1; // local 0 holds the global environment
+			for(int i = 0; i < arity; i++)
+				params[i] = allocate();
+			_frames.add(params);
+			number(_lambda.body());
+			op(0xaf, -2); // dreturn
+			if(_code.size() > Short.MAX_VALUE || _locals > 255)
+				throw UNSUPPORTED;
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile(arity), true);
+				Class<?> kernel = lookup.lookupClass();
+				lookup.findStaticSetter(kernel, "sites", Site[].class).invoke(_sites.toArray(new Site[0]));
+				Class<?>[] types = new Class<?>[arity + 1];
+				types[0] = Env.class;
+				for(int i = 1; i <= arity; i++)
+					types[i] = double.class;
+				return lookup.findStatic(kernel, "invoke", MethodType.methodType(double.class, types));
+			} catch (Throwable t) {
+				throw new IllegalStateException("Could not load compiled lambda", t);
+			}
+		}
+
+		private byte[] classFile(int arity) throws IOException {
+			int thisClass = _pool.cls(KERNEL);
+			int superClass = _pool.cls("java/lang/Object");
+			int fieldName = _pool.utf8("sites");
+			int fieldType = _pool.utf8("[L" + SITE + ";");
+			int methodName = _pool.utf8("invoke");
+			int methodType = _pool.utf8(descriptor(arity));
+			int codeAttr = _pool.utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49); // old enough to need no stack map frames
+			out.writeShort(_pool._count);
+			_pool._bytes.writeTo(out);
+			out.writeShort(0x0031); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(1); // fields
+			out.writeShort(0x0009); // public static
+			out.writeShort(fieldName);
+			out.writeShort(fieldType);
+			out.writeShort(0);
+			out.writeShort(1); // methods
+			out.writeShort(0x0009);
+			out.writeShort(methodName);
+			out.writeShort(methodType);
+			out.writeShort(1);
+			out.writeShort(codeAttr);
+			out.writeInt(12 + _code.size());
+			out.writeShort(_maxStack);
+			out.writeShort(_locals);
+			out.writeInt(_code.size());
+			_code.writeTo(out);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // code attributes
+			out.writeShort(0); // class attributes
+			return bytes.toByteArray();
+		}
+
+		private int allocate() {
+			int local = _locals;
+			_locals += 2;
+			return local;
+		}
+
+		private void op(int opcode, int stackDelta) {
+			_code.write(opcode);
+			_stack += stackDelta;
+			_maxStack = Math.max(_maxStack, _stack);
+		}
+
+		private void u1(int b) {
+			_code.write(b);
+		}
+
+		private void u2(int s) {
+			_code.write(s >> 8);
+			_code.write(s);
+		}
+
+		private int jump(int opcode, int stackDelta) {
+			int at = _code.size();
+			op(opcode, stackDelta);
+			u2(0);
+			return at;
+		}
+
+		private void land(int jump) {
+			byte[] code = _code.toByteArray();
+			int offset = code.length - jump;
+			code[jump + 1] = (byte) (offset >> 8);
+			code[jump + 2] = (byte) offset;
+			_code.reset();
+			_code.write(code, 0, code.length);
+		}
+
+		private void load(int local) {
+			op(0x18, 2); // dload
+			u1(local);
+		}
+
+		private void store(int local) {
+			op(0x39, -2); // dstore
+			u1(local);
+		}
+
+		/** Emits code leaving the number an expression evaluates to on the stack. */
+		private void number(Exp e) throws Unsupported {
+			if(e instanceof NumExp) {
+				op(0x14, 2); // ldc2_w
+				u2(_pool.number(((NumExp) e).v()));
+			} else if(e instanceof VarExp) {
+				VarExp var = (VarExp) e;
+				if(var.depth() < 0 || var.depth() >= _frames.size())
+					throw UNSUPPORTED; // globals and captured variables
+				load(_frames.get(_frames.size() - 1 - var.depth())[var.slot()]);
+			} else if(e instanceof CompoundArithExp) {
+				arith((CompoundArithExp) e);
+			} else if(e instanceof IfExp) {
+				IfExp ife = (IfExp) e;
+				int otherwise = branch(ife.conditional());
+				int stack = _stack;
+				number(ife.then_exp());
+				int done = jump(0xa7, 0); // goto
+				_stack = stack;
+				if(otherwise >= 0)
+					land(otherwise);
+				number(ife.else_exp());
+				land(done);
+			} else if(e instanceof LetExp) {
+				LetExp let = (LetExp) e;
+				List<Exp> value_exps = let.value_exps();
+				int[] frame = new int[value_exps.size()];
+				for(int i = 0; i < frame.length; i++) {
+					number(value_exps.get(i));
+					frame[i] = allocate();
+					store(frame[i]);
+				}
+				_frames.add(frame);
+				number(let.body());
+				_frames.remove(_frames.size() - 1);
+			} else if(e instanceof CallExp) {
+				call((CallExp) e);
+			} else {
+				throw UNSUPPORTED;
+			}
+		}
+
+		private void arith(CompoundArithExp e) throws Unsupported {
+			int opcode;
+			if(e instanceof AddExp) opcode = 0x63; // dadd
+			else if(e instanceof SubExp) opcode = 0x67; // dsub
+			else if(e instanceof MultExp) opcode = 0x6b; // dmul
+			else opcode = 0x6f; // ddiv
+			List<Exp> operands = e.all();
+			if(e instanceof AddExp || e instanceof MultExp) {
+				// Same association as the Evaluator: start from 0 or 1.
+				op(e instanceof AddExp ? 0x0e : 0x0f, 2); // dconst_0 / dconst_1
+				for(Exp operand : operands) {
+					number(operand);
+					op(opcode, -2);
+				}
+			} else {
+				number(operands.get(0));
+				for(int i = 1; i < operands.size(); i++) {
+					number(operands.get(i));
+					op(opcode, -2);
+				}
+			}
+		}
+
+		/**
+		 * Emits a test of a condition and returns the position of the jump taken
+		 * when it is false, or -1 if the condition is always true.
+		 */
+		private int branch(Exp e) throws Unsupported {
+			if(e instanceof BoolExp)
+				return ((BoolExp) e).v() ? -1 : jump(0xa7, 0);
+			if(!(e instanceof BinaryComparator))
+				throw UNSUPPORTED;
+			BinaryComparator cmp = (BinaryComparator) e;
+			number(cmp.first_exp());
+			number(cmp.second_exp());
+			if(e instanceof LessExp) {
+				op(0x98, -3); // dcmpg
+				return jump(0x9c, -1); // ifge
+			}
+			op(0x97, -3); // dcmpl
+			if(e instanceof GreaterExp)
+				return jump(0x9e, -1); // ifle
+			return jump(0x9a, -1); // ifne
+		}
+
+		private void call(CallExp e) throws Unsupported {
+			if(!(e.operator() instanceof VarExp) || ((VarExp) e.operator()).depth() != VarExp.GLOBAL)
+				throw UNSUPPORTED;
+			List<Exp> operands = e.operands();
+			int arity = operands.size();
+			if(arity > MAX_ARITY)
+				throw UNSUPPORTED;
+			int[] args = new int[arity];
+			for(int i = 0; i < arity; i++) {
+				number(operands.get(i));
+				args[i] = allocate();
+				store(args[i]);
+			}
+			int site = _sites.size();
+			_sites.add(new Site(((VarExp) e.operator()).name(), arity, _lambda));
+
+			if(e.tail()) {
+				// Other tail calls must keep running in constant Java stack,
+				// which only the Evaluator's trampoline provides.
+				if(arity != _lambda.formals().size() || !_sites.get(site).isSelf(_globals))
+					throw UNSUPPORTED;
+				// A self call in tail position rebinds the parameters and loops.
+				loadSite(site);
+				op(0x2a, 1); // aload_0
+				op(0xb6, -1); // invokevirtual
+				u2(_pool.method(SITE, "isSelf", "(" + ENV + ")Z"));
+				int other = jump(0x99, -1); // ifeq
+				int[] params = _frames.get(0);
+				for(int arg : args)
+					load(arg);
+				for(int i = arity - 1; i >= 0; i--)
+					store(params[i]);
+				op(0xa7, 0); // goto the start of the method
+				u2(-(_code.size() - 1));
+				land(other);
+				siteCall(site, args);
+				return;
+			}
+
+			// Direct call while the name is still bound to this very lambda.
+			loadSite(site);
+			op(0x2a, 1); // aload_0
+			op(0xb6, -1); // invokevirtual
+			u2(_pool.method(SITE, "isSelf", "(" + ENV + ")Z"));
+			int other = jump(0x99, -1); // ifeq
+			if(arity == _lambda.formals().size()) {
+				op(0x2a, 1);
+				for(int arg : args)
+					load(arg);
+				op(0xb8, 1 - 2 * arity); // invokestatic
+				u2(_pool.method(KERNEL, "invoke", descriptor(arity)));
+			} else {
+				siteCall(site, args); // arity mismatch: let the site deoptimize
+			}
+			int done = jump(0xa7, 0);
+			_stack -= 2;
+			land(other);
+			siteCall(site, args);
+			land(done);
+		}
+
+		private void siteCall(int site, int[] args) {
+			loadSite(site);
+			op(0x2a, 1);
+			for(int arg : args)
+				load(arg);
+			op(0xb6, -2 * args.length); // invokevirtual
+			u2(_pool.method(SITE, "call" + args.length, descriptor(args.length)));
+		}
+
+		private void loadSite(int site) {
+			op(0xb2, 1); // getstatic
+			u2(_pool.field(KERNEL, "sites", "[L" + SITE + ";"));
+			op(0x11, 1); // sipush
+			u2(site);
+			op(0x32, -1); // aaload
+		}
+	}
+}
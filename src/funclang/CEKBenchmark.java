@@ -0,0 +1,79 @@
+package funclang;
+import java.io.File;
+import java.io.IOException;
+
+import funclang.AST.*;
+
+/**
+ * Compares the CEK machine with the recursive Evaluator on a few recursive
+ * programs, and shows the list sizes each of them can handle with the non-tail
+ * procedures of lib/std.scm.
+ *
+ * Run from the funclang source directory (so that lib/std.scm is found) with
+ * an optional number of repetitions, e.g. java funclang.CEKBenchmark 10
+ */
+public class CEKBenchmark {
+
+	static final String RANGE = "(define range (lambda (n acc) (if (= n 0) acc (range (- n 1) (cons n acc)))))";
+
+	static final String[] PROGRAMS = {
+		"(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))",
+		"(fib 22)",
+		"(length (range 500 (list)))",
+		"(length (map (lambda (x) (* x x)) (range 500 (list))))",
+		"(length (append (range 500 (list)) (range 500 (list))))",
+	};
+
+	interface Engine {
+		Value run(Program p);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int reps = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		String std = Reader.readFile("lib" + File.separator + "std.scm");
+		Reader reader = new Reader();
+
+		Evaluator eval = new Evaluator(reader);
+		CEKMachine machine = new CEKMachine(new Evaluator(reader));
+		Engine recursive = eval::valueOf;
+		Engine cek = machine::valueOf;
+		recursive.run(reader.parse(std + RANGE));
+		cek.run(reader.parse(std + RANGE));
+
+		System.out.printf("%-60s %15s %15s%n", "program", "recursive", "cek");
+		for(String program : PROGRAMS) {
+			Program p = reader.parse(program);
+			System.out.printf("%-60s %15s %15s%n", program,
+					time(recursive, p, reps), time(cek, p, reps));
+		}
+
+		System.out.println();
+		for(int n = 1000; n <= 1000000; n *= 10) {
+			Program p = reader.parse("(length (map (lambda (x) (+ x 1)) (range " + n + " (list))))");
+			long steps = machine.steps();
+			System.out.printf("map+length over %7d elements: recursive %s, cek %s (%d steps)%n", n,
+					depth(recursive, p), depth(cek, p), machine.steps() - steps);
+		}
+	}
+
+	/** Average milliseconds per run, after one warm-up run, or why there are none. */
+	static String time(Engine engine, Program p, int reps) {
+		try {
+			engine.run(p);
+			long start = System.nanoTime();
+			for(int i = 0; i < reps; i++)
+				engine.run(p);
+			return String.format("%.2f ms", (System.nanoTime() - start) / 1e6 / reps);
+		} catch (StackOverflowError e) {
+			return "stack overflow";
+		}
+	}
+
+	static String depth(Engine engine, Program p) {
+		try {
+			return engine.run(p).tostring();
+		} catch (StackOverflowError e) {
+			return "stack overflow";
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import funclang.Env.*;
+
+/**
+ * An evaluator built as a CEK abstract machine: a control expression, an
+ * environment and a continuation kept as a linked stack of frames on the Java
+ * heap. Evaluation proceeds in small steps, so the recursion depth of a program
+ * is limited by memory rather than by the Java stack, and evaluation can be
+ * paused after any step and resumed later.
+ *
+ * Each visit method is one machine transition for its expression: it either
+ * produces the value right away or pushes the frames that will finish the
+ * expression and hands control to a subexpression. The machine shares the
+ * heap, global environment and reader of an Evaluator, and lets it evaluate
+ * the array, read and list? forms in a single step.
+ */
+public class CEKMachine implements Visitor<Value> {
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	private Evaluator _host;
+
+	// Machine registers.
+	private ASTNode _control;
+	private Env _env;
+	private Value _value;
+	private Frame _k;
+	private long _steps;
+
+	/** Returned by a transition that handed control to another expression. */
+	private static final Value JUMP = new UnitVal();
+
+	public CEKMachine(Evaluator host) {
+		_host = host;
+	}
+
+	Value valueOf(Program p) {
+		load(p);
+		while(step());
+		return _value;
+	}
+
+	/** Prepares the machine to evaluate a program. */
+	public void load(Program p) {
+		_control = p;
+		_env = _host.initEnv;
+		_value = null;
+		_k = null;
+	}
+
+	/** Runs at most max steps; returns true once the program is finished. */
+	public boolean run(long max) {
+		for(long i = 0; i < max; i++)
+			if(!step())
+				return true;
+		return finished();
+	}
+
+	public boolean finished() {
+		return _control == null && _k == null;
+	}
+
+	/** The value of the program, once it is finished. */
+	public Value result() {
+		return _value;
+	}
+
+	public long steps() {
+		return _steps;
+	}
+
+	/** Performs one transition; returns false if the machine has halted. */
+	public boolean step() {
+		if(finished())
+			return false;
+		_steps++;
+		try {
+			if(_control != null) {
+				ASTNode control = _control;
+				_control = null;
+				Value v = (Value) control.accept(this, _env);
+				if(v != JUMP)
+					_value = v;
+			} else {
+				Frame frame = _k;
+				_k = frame._next;
+				Value v = frame.resume(this, _value);
+				if(v != JUMP)
+					_value = v;
+			}
+		} catch (ClassCastException e) {
+			// Same as the Evaluator: the enclosing program evaluates to an error.
+			while(_k != null && !(_k instanceof ProgramFrame))
+				_k = _k._next;
+			if(_k != null)
+				_k = _k._next;
+			_control = null;
+			_value = new DynamicError(e.getMessage());
+		}
+		return true;
+	}
+
+	private Value jump(ASTNode control, Env env) {
+		_control = control;
+		_env = env;
+		return JUMP;
+	}
+
+	private void push(Frame frame) {
+		frame._next = _k;
+		_k = frame;
+	}
+
+	/** The rest of a computation, waiting for the value of a subexpression. */
+	static abstract class Frame {
+		Frame _next;
+		abstract Value resume(CEKMachine m, Value v);
+	}
+
+	/** Finishes an expression once all of its operands have values. */
+	interface Combine {
+		Value apply(CEKMachine m, Value[] vals, Env env);
+	}
+
+	/** Evaluates operands left to right, then combines their values. */
+	static class OperandsFrame extends Frame {
+		private List<Exp> _exps;
+		private Value[] _vals;
+		private int _index = 0;
+		private Env _env;
+		private Combine _combine;
+		OperandsFrame(List<Exp> exps, Env env, Combine combine) {
+			_exps = exps;
+			_vals = new Value[exps.size()];
+			_env = env;
+			_combine = combine;
+		}
+		Value resume(CEKMachine m, Value v) {
+			_vals[_index++] = v;
+			if(_index < _vals.length) {
+				m.push(this);
+				return m.jump(_exps.get(_index), _env);
+			}
+			return _combine.apply(m, _vals, _env);
+		}
+	}
+
+	/** Marks where a (possibly nested) program started. */
+	static class ProgramFrame extends Frame {
+		Value resume(CEKMachine m, Value v) {
+			return v;
+		}
+	}
+
+	private Value operands(List<Exp> exps, Env env, Combine combine) {
+		if(exps.isEmpty())
+			return combine.apply(this, new Value[0], env);
+		push(new OperandsFrame(exps, env, combine));
+		return jump(exps.get(0), env);
+	}
+
+	private Value operand(Exp exp, Env env, Combine combine) {
+		List<Exp> exps = new ArrayList<Exp>(1);
+		exps.add(exp);
+		return operands(exps, env, combine);
+	}
+
+	private Value operands(Exp first, Exp second, Env env, Combine combine) {
+		List<Exp> exps = new ArrayList<Exp>(2);
+		exps.add(first);
+		exps.add(second);
+		return operands(exps, env, combine);
+	}
+
+	@Override
+	public Value visit(AddExp e, Env env) {
+		return operands(e.all(), env, (m, vals, en) -> {
+			double result = 0;
+			for(int i = 0; i < vals.length; i++) {
+				if(!(vals[i] instanceof NumVal))
+					return arith('+', new NumVal(result), vals, i);
+				result += ((NumVal) vals[i]).v();
+			}
+			return new NumVal(result);
+		});
+	}
+
+	@Override
+	public Value visit(UnitExp e, Env env) {
+		return new UnitVal();
+	}
+
+	@Override
+	public Value visit(NumExp e, Env env) {
+		return new NumVal(e.v());
+	}
+
+	@Override
+	public Value visit(StrExp e, Env env) {
+		return new StringVal(e.v());
+	}
+
+	@Override
+	public Value visit(BoolExp e, Env env) {
+		return new BoolVal(e.v());
+	}
+
+	@Override
+	public Value visit(DivExp e, Env env) {
+		return operands(e.all(), env, (m, vals, en) -> {
+			if(!(vals[0] instanceof NumVal))
+				return arith('/', ArrayOps.operand(vals[0]), vals, 1);
+			double result = ((NumVal) vals[0]).v();
+			for(int i = 1; i < vals.length; i++) {
+				if(!(vals[i] instanceof NumVal))
+					return arith('/', new NumVal(result), vals, i);
+				result = result / ((NumVal) vals[i]).v();
+			}
+			return new NumVal(result);
+		});
+	}
+
+	@Override
+	public Value visit(MultExp e, Env env) {
+		return operands(e.all(), env, (m, vals, en) -> {
+			double result = 1;
+			for(int i = 0; i < vals.length; i++) {
+				if(!(vals[i] instanceof NumVal))
+					return arith('*', new NumVal(result), vals, i);
+				result *= ((NumVal) vals[i]).v();
+			}
+			return new NumVal(result);
+		});
+	}
+
+	@Override
+	public Value visit(Program p, Env env) {
+		List<Exp> parts = new ArrayList<Exp>(p.decls());
+		parts.add(p.e());
+		push(new ProgramFrame());
+		return operands(parts, _host.initEnv, (m, vals, en) -> vals[vals.length - 1]);
+	}
+
+	@Override
+	public Value visit(SubExp e, Env env) {
+		return operands(e.all(), env, (m, vals, en) -> {
+			if(!(vals[0] instanceof NumVal))
+				return arith('-', ArrayOps.operand(vals[0]), vals, 1);
+			double result = ((NumVal) vals[0]).v();
+			for(int i = 1; i < vals.length; i++) {
+				if(!(vals[i] instanceof NumVal))
+					return arith('-', new NumVal(result), vals, i);
+				result = result - ((NumVal) vals[i]).v();
+			}
+			return new NumVal(result);
+		});
+	}
+
+	/** Combines acc with vals from the given one on, once one of them is not a number. */
+	private static Value arith(char op, Value acc, Value[] vals, int from) {
+		for(int i = from; i < vals.length; i++)
+			acc = ArrayOps.arith(op, acc, vals[i]);
+		return acc;
+	}
+
+	@Override
+	public Value visit(VarExp e, Env env) {
+		int depth = e.depth();
+		if(depth >= 0)
+			return env.get(depth, e.slot());
+		if(depth == VarExp.GLOBAL)
+			return e.cell((GlobalEnv) _host.initEnv).get();
+		return env.get(e.name());
+	}
+
+	@Override
+	public Value visit(LetExp e, Env env) {
+		return operands(e.value_exps(), env, (m, vals, en) ->
+			m.jump(e.body(), new FrameEnv(en, e.names(), vals)));
+	}
+
+	@Override
+	public Value visit(DefineDecl d, Env env) {
+		return operand(d.value_exp(), env, (m, vals, en) -> {
+			((GlobalEnv) _host.initEnv).extend(d.name(), vals[0]);
+			return new UnitVal();
+		});
+	}
+
+	@Override
+	public Value visit(ReadExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+
+	@Override
+	public Value visit(EvalExp e, Env env) {
+		return operand(e.code(), env, (m, vals, en) -> {
+			Program p = _host._reader.parse(((StringVal) vals[0]).v());
+			return m.jump(p, en);
+		});
+	}
+
+	@Override
+	public Value visit(LambdaExp e, Env env) {
+		if(e.defParam() == null)
+			return new FunVal(e.capture(env, _host.initEnv), e);
+		List<String> formals = e.formals();
+		return operand(e.defParam(), env, (m, vals, en) -> new FunVal(
+				new FrameEnv(e.capture(en, _host.initEnv), formals.subList(formals.size() - 1, formals.size()), vals), e));
+	}
+
+	@Override
+	public Value visit(CallExp e, Env env) {
+		return operand(e.operator(), env, (m, operator, en) -> {
+			if(!(operator[0] instanceof FunVal))
+				return new DynamicError("Operator not a function in call " +  ts.visit(e, en));
+			FunVal f = (FunVal) operator[0];
+			return m.operands(e.operands(), en, (m2, actuals, en2) -> m2.apply(e, f, actuals, en2));
+		});
+	}
+
+	private Value apply(CallExp e, FunVal operator, Value[] actuals, Env env) {
+		// A default parameter that is not overridden stays unbound in the call
+		// frame and is found in the closure's own frame.
+		List<String> formals = operator.formals();
+		Value[] values = actuals;
+		if(formals.size()-1 == actuals.length) {
+			values = new Value[formals.size()];
+			System.arraycopy(actuals, 0, values, 0, actuals.length);
+		}
+		else if(formals.size() != actuals.length)
+			return new DynamicError("Argument mismatch in call " + ts.visit(e, env));
+		// Every call is a tail call here: the body runs on the caller's continuation.
+		return jump(operator.body(), new FrameEnv(operator.env(), formals, values));
+	}
+
+	@Override
+	public Value visit(IfExp e, Env env) {
+		return operand(e.conditional(), env, (m, vals, en) -> {
+			if(!(vals[0] instanceof BoolVal))
+				return new DynamicError("Condition not a boolean in expression " +  ts.visit(e, en));
+			if(((BoolVal) vals[0]).v())
+				return m.jump(e.then_exp(), en);
+			return m.jump(e.else_exp(), en);
+		});
+	}
+
+	@Override
+	public Value visit(LessExp e, Env env) {
+		return operands(e.first_exp(), e.second_exp(), env, (m, vals, en) ->
+			new BoolVal(((NumVal) vals[0]).v() < ((NumVal) vals[1]).v()));
+	}
+
+	@Override
+	public Value visit(EqualExp e, Env env) {
+		return operands(e.first_exp(), e.second_exp(), env, (m, vals, en) ->
+			new BoolVal(Evaluator.compareValues(vals[0], vals[1])));
+	}
+
+	@Override
+	public Value visit(GreaterExp e, Env env) {
+		return operands(e.first_exp(), e.second_exp(), env, (m, vals, en) ->
+			new BoolVal(((NumVal) vals[0]).v() > ((NumVal) vals[1]).v()));
+	}
+
+	@Override
+	public Value visit(CarExp e, Env env) {
+		return operand(e.arg(), env, (m, vals, en) -> ((PairVal) vals[0]).fst());
+	}
+
+	@Override
+	public Value visit(CdrExp e, Env env) {
+		return operand(e.arg(), env, (m, vals, en) -> ((PairVal) vals[0]).snd());
+	}
+
+	@Override
+	public Value visit(ConsExp e, Env env) {
+		return operands(e.fst(), e.snd(), env, (m, vals, en) -> new PairVal(vals[0], vals[1]));
+	}
+
+	@Override
+	public Value visit(ListExp e, Env env) {
+		return operands(e.elems(), env, (m, vals, en) -> {
+			Value result = new Null();
+			for(int i = vals.length-1; i >= 0; i--)
+				result = new PairVal(vals[i], result);
+			return result;
+		});
+	}
+
+	@Override
+	public Value visit(NullExp e, Env env) {
+		return operand(e.arg(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof Null));
+	}
+
+	@Override
+	public Value visit(NumPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof NumVal));
+	}
+
+	@Override
+	public Value visit(BoolPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof BoolVal));
+	}
+
+	@Override
+	public Value visit(StrPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof StringVal));
+	}
+
+	@Override
+	public Value visit(ProcPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof FunVal));
+	}
+
+	@Override
+	public Value visit(PairPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof PairVal));
+	}
+
+	@Override
+	public Value visit(ListPredExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+
+	@Override
+	public Value visit(UnitPredExp e, Env env) {
+		return operand(e.exp(), env, (m, vals, en) -> new BoolVal(vals[0] instanceof UnitVal));
+	}
+
+	@Override
+	public Value visit(RefExp e, Env env) {
+		return operand(e.val_exp(), env, (m, vals, en) -> _host.heap.ref(vals[0]));
+	}
+
+	@Override
+	public Value visit(DerefExp e, Env env) {
+		return operand(e.loc_exp(), env, (m, vals, en) -> _host.heap.deref((RefVal) vals[0]));
+	}
+
+	@Override
+	public Value visit(SetrefExp e, Env env) {
+		return operands(e.loc_exp(), e.val_exp(), env, (m, vals, en) ->
+			_host.heap.setref((RefVal) vals[0], vals[1]));
+	}
+
+	@Override
+	public Value visit(FreeExp e, Env env) {
+		return operand(e.loc_exp(), env, (m, vals, en) -> {
+			_host.heap.free((RefVal) vals[0]);
+			return new UnitVal();
+		});
+	}
+
+	@Override
+	public Value visit(ArrayExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+
+	@Override
+	public Value visit(ArrAssignExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+
+	@Override
+	public Value visit(IndexExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+
+	@Override
+	public Value visit(ArrayOpExp e, Env env) {
+		return (Value) e.accept(_host, env);
+	}
+}
@@ -0,0 +1,151 @@
+package funclang;
+
+import funclang.AST.Exp;
+import funclang.AST.LambdaExp;
+
+/**
+ * Compiled code of one function (or of a whole program) for the RegisterVM.
+ *
+ * Code is a flat int[] of instructions, each an opcode followed by its
+ * operands. Operands named a, b, c are register numbers in the frame's
+ * Value[] register file; k indexes the constant pool of NumExp and StrExp
+ * literals, n the global names, f the nested functions, x the source nodes
+ * (used for error messages) and t is a jump target. A function's formals are
+ * in registers 0 to arity-1 when it starts.
+ */
+public class Chunk {
+
+	// Loads and moves.
+	static final int CONST = 0;     // a k         R[a] = K[k]
+	static final int BOOL = 1;      // a i         R[a] = i != 0
+	static final int UNIT = 2;      // a           R[a] = unit
+	static final int MOVE = 3;      // a b         R[a] = R[b]
+	static final int CAPTURED = 4;  // a i         R[a] = captured variable i
+	static final int GLOBAL = 5;    // a n         R[a] = value of global N[n]
+	static final int DEFINE = 6;    // a n b       define N[n] as R[b]; R[a] = unit
+
+	// Arithmetic and comparison.
+	static final int ADD = 7;       // a b c       R[a] = R[b] + R[c], numbers or arrays
+	static final int SUB = 8;       // a b c
+	static final int MUL = 9;       // a b c
+	static final int DIV = 10;      // a b c
+	static final int LESS = 11;     // a b c       R[a] = R[b] < R[c]
+	static final int GREATER = 12;  // a b c
+	static final int EQUAL = 13;    // a b c
+	static final int CAST = 14;     // a i         fail unless R[a] is a number (i=0), a reference (i=1)
+	                                //             or a number or an array (i=2)
+
+	// Control.
+	static final int JUMP = 15;     // t
+	static final int BRANCH = 16;   // a t b x u   go to t if R[a] is #f; if not a boolean, R[b] = error and go to u
+	static final int CLOSURE = 17;  // a f m r...  R[a] = closure of F[f] capturing the m registers r...
+	static final int FUNCTION = 18; // a b x t     if R[b] is not a function, R[a] = error and go to t
+	static final int CALL = 19;     // a b x m r...  R[a] = R[b] applied to the m registers r...
+	static final int TAILCALL = 20; // a b x m r...  same, reusing the current frame
+	static final int RETURN = 21;   // a
+
+	// Pairs and lists.
+	static final int CONS = 22;     // a b c
+	static final int CAR = 23;      // a b
+	static final int CDR = 24;      // a b
+	static final int LIST = 25;     // a m r...
+	static final int ISNULL = 26;   // a b
+	static final int ISNUM = 27;    // a b
+	static final int ISBOOL = 28;   // a b
+	static final int ISSTR = 29;    // a b
+	static final int ISPROC = 30;   // a b
+	static final int ISPAIR = 31;   // a b
+	static final int ISLIST = 32;   // a b i       i != 0 if the operand is written as a list expression
+	static final int ISUNIT = 33;   // a b
+
+	// Heap.
+	static final int REF = 34;      // a b
+	static final int DEREF = 35;    // a b
+	static final int SETREF = 36;   // a b c
+	static final int FREE = 37;     // a b
+
+	// Arrays.
+	static final int ARRAY = 38;    // a m r...    new array with the m dimensions r...
+	static final int INDEX = 39;    // a b m r...  element of array R[b] at the m indices r...
+	static final int ARRSET = 40;   // a b c m r...  set element of R[b] at the m indices r... to R[c]
+
+	// Strings.
+	static final int READ = 41;     // a b
+	static final int EVAL = 42;     // a b
+
+	// Whole arrays.
+	static final int ARRAYOP = 43;  // a o m r...  R[a] = array operation o on the m registers r...
+
+	static final String[] NAMES = {
+		"const", "bool", "unit", "move", "captured", "global", "define",
+		"add", "sub", "mul", "div", "less", "greater", "equal", "cast",
+		"jump", "branch", "closure", "function", "call", "tailcall", "return",
+		"cons", "car", "cdr", "list", "null?", "number?", "boolean?", "string?",
+		"procedure?", "pair?", "list?", "unit?",
+		"ref", "deref", "set!", "free",
+		"array", "index", "arrset",
+		"read", "eval",
+		"arrayop",
+	};
+
+	/**
+	 * Operands of each opcode: r register, k constant, n global name, c captured
+	 * variable, f function, x source node, t jump target, i immediate, o array
+	 * operation; a trailing * is a count followed by that many registers.
+	 */
+	static final String[] OPERANDS = {
+		"rk", "ri", "r", "rr", "rc", "rn", "rnr",
+		"rrr", "rrr", "rrr", "rrr", "rrr", "rrr", "rrr", "ri",
+		"t", "rtrxt", "rf*", "rrxt", "rrx*", "rrx*", "r",
+		"rrr", "rr", "rr", "r*", "rr", "rr", "rr", "rr",
+		"rr", "rr", "rri", "rr",
+		"rr", "rr", "rrr", "rr",
+		"r*", "rr*", "rrr*",
+		"rr", "rr",
+		"ro*",
+	};
+
+	String _name;
+	int[] _code;
+	Value[] _constants;
+	String[] _names;
+	Env.Cell[] _cells; // of the global names, filled in as they are read
+	Chunk[] _functions;
+	Exp[] _nodes;
+	int _registers;
+
+	// Functions only.
+	LambdaExp _lambda;
+	int _arity;
+	String[] _captured; // names of the captured variables, in capture order
+	Value _default; // value of the default parameter, if declared
+	int _fallback = -1; // captured variable that stands in for a missing last actual
+
+	// Profile.
+	long _calls;
+
+	public String name() {
+		return _name;
+	}
+
+	public long calls() {
+		return _calls;
+	}
+
+	/** The cell of global name n in the given table. */
+	Env.Cell cell(int n, Env.GlobalEnv globals) {
+		Env.Cell cell = _cells[n];
+		if(cell == null || cell.owner() != globals)
+			_cells[n] = cell = globals.cell(_names[n]);
+		return cell;
+	}
+
+	/** Length of the instruction starting at pc, including the opcode. */
+	int length(int pc) {
+		String operands = OPERANDS[_code[pc]];
+		if(!operands.endsWith("*"))
+			return 1 + operands.length();
+		int fixed = operands.length() - 1;
+		return 2 + fixed + _code[pc + 1 + fixed];
+	}
+}
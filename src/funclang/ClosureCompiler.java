@@ -0,0 +1,509 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import funclang.Env.*;
+
+/**
+ * Alternative execution engine that compiles each expression once into a tree
+ * of Java closures instead of re-visiting the AST on every evaluation. The
+ * compiled body of a lambda is cached on its LambdaExp, so a FunVal is compiled
+ * once no matter how often it is created or called.
+ *
+ * The engine shares the heap, global environment and reader of the Evaluator
+ * it is built on, and hands the array and file forms back to it, so both
+ * engines give the same results on every program.
+ */
+public class ClosureCompiler implements Visitor<ClosureCompiler.Node> {
+
+	/** A compiled expression. */
+	public interface Node {
+		Value eval(Env env);
+	}
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	private Evaluator _host;
+
+	public ClosureCompiler(Evaluator host) {
+		_host = host;
+	}
+
+	Value valueOf(Program p) {
+		return compileProgram(p).eval(_host.initEnv);
+	}
+
+	Node compile(Exp e) {
+		return (Node) e.accept(this, null);
+	}
+
+	private Node compileProgram(Program p) {
+		List<DefineDecl> decls = p.decls();
+		Node[] defs = new Node[decls.size()];
+		for(int i = 0; i < defs.length; i++)
+			defs[i] = compile(decls.get(i));
+		Node body = compile(p.e());
+		return env -> {
+			try {
+				for(Node def : defs)
+					def.eval(_host.initEnv);
+				return body.eval(_host.initEnv);
+			} catch (ClassCastException e) {
+				return new DynamicError(e.getMessage());
+			}
+		};
+	}
+
+	private Node[] compileAll(List<Exp> exps) {
+		Node[] nodes = new Node[exps.size()];
+		for(int i = 0; i < nodes.length; i++)
+			nodes[i] = compile(exps.get(i));
+		return nodes;
+	}
+
+	/** Forms that are not worth compiling are evaluated by the host. */
+	private Node interpreted(Exp e) {
+		return env -> (Value) e.accept(_host, env);
+	}
+
+	private static double num(Node n, Env env) {
+		return ((NumVal) n.eval(env)).v(); // Dynamic type-checking
+	}
+
+	/** The value of an operand of arithmetic, which may also be an array. */
+	private static Value operand(Node n, Env env) {
+		return ArrayOps.operand(n.eval(env)); // Dynamic type-checking
+	}
+
+	/** Combines acc with the operands from the given one on, once one of them is an array. */
+	private static Value rest(char op, Value acc, Node[] ops, int from, Env env) {
+		for(int i = from; i < ops.length; i++)
+			acc = ArrayOps.arith(op, acc, ops[i].eval(env));
+		return acc;
+	}
+
+	@Override
+	public Node visit(AddExp e, Env env) {
+		Node[] ops = compileAll(e.all());
+		if(ops.length == 2) {
+			Node fst = ops[0], snd = ops[1];
+			return en -> {
+				Value a = operand(fst, en), b = operand(snd, en);
+				if(a instanceof NumVal && b instanceof NumVal)
+					return new NumVal(((NumVal) a).v() + ((NumVal) b).v());
+				return ArrayOps.arith('+', a, b);
+			};
+		}
+		return en -> {
+			double result = 0;
+			for(int i = 0; i < ops.length; i++) {
+				Value val = operand(ops[i], en);
+				if(!(val instanceof NumVal))
+					return rest('+', ArrayOps.arith('+', new NumVal(result), val), ops, i + 1, en);
+				result += ((NumVal) val).v();
+			}
+			return new NumVal(result);
+		};
+	}
+
+	@Override
+	public Node visit(UnitExp e, Env env) {
+		return en -> new UnitVal();
+	}
+
+	@Override
+	public Node visit(NumExp e, Env env) {
+		double v = e.v();
+		return en -> new NumVal(v);
+	}
+
+	@Override
+	public Node visit(StrExp e, Env env) {
+		String v = e.v();
+		return en -> new StringVal(v);
+	}
+
+	@Override
+	public Node visit(BoolExp e, Env env) {
+		boolean v = e.v();
+		return en -> new BoolVal(v);
+	}
+
+	@Override
+	public Node visit(DivExp e, Env env) {
+		Node[] ops = compileAll(e.all());
+		return en -> {
+			Value first = operand(ops[0], en);
+			if(!(first instanceof NumVal))
+				return rest('/', first, ops, 1, en);
+			double result = ((NumVal) first).v();
+			for(int i = 1; i < ops.length; i++) {
+				Value val = operand(ops[i], en);
+				if(!(val instanceof NumVal))
+					return rest('/', ArrayOps.arith('/', new NumVal(result), val), ops, i + 1, en);
+				result = result / ((NumVal) val).v();
+			}
+			return new NumVal(result);
+		};
+	}
+
+	@Override
+	public Node visit(MultExp e, Env env) {
+		Node[] ops = compileAll(e.all());
+		if(ops.length == 2) {
+			Node fst = ops[0], snd = ops[1];
+			return en -> {
+				Value a = operand(fst, en), b = operand(snd, en);
+				if(a instanceof NumVal && b instanceof NumVal)
+					return new NumVal(((NumVal) a).v() * ((NumVal) b).v());
+				return ArrayOps.arith('*', a, b);
+			};
+		}
+		return en -> {
+			double result = 1;
+			for(int i = 0; i < ops.length; i++) {
+				Value val = operand(ops[i], en);
+				if(!(val instanceof NumVal))
+					return rest('*', ArrayOps.arith('*', new NumVal(result), val), ops, i + 1, en);
+				result *= ((NumVal) val).v();
+			}
+			return new NumVal(result);
+		};
+	}
+
+	@Override
+	public Node visit(Program p, Env env) {
+		return compileProgram(p);
+	}
+
+	@Override
+	public Node visit(SubExp e, Env env) {
+		Node[] ops = compileAll(e.all());
+		if(ops.length == 2) {
+			Node fst = ops[0], snd = ops[1];
+			return en -> {
+				Value a = operand(fst, en), b = operand(snd, en);
+				if(a instanceof NumVal && b instanceof NumVal)
+					return new NumVal(((NumVal) a).v() - ((NumVal) b).v());
+				return ArrayOps.arith('-', a, b);
+			};
+		}
+		return en -> {
+			Value first = operand(ops[0], en);
+			if(!(first instanceof NumVal))
+				return rest('-', first, ops, 1, en);
+			double result = ((NumVal) first).v();
+			for(int i = 1; i < ops.length; i++) {
+				Value val = operand(ops[i], en);
+				if(!(val instanceof NumVal))
+					return rest('-', ArrayOps.arith('-', new NumVal(result), val), ops, i + 1, en);
+				result = result - ((NumVal) val).v();
+			}
+			return new NumVal(result);
+		};
+	}
+
+	@Override
+	public Node visit(VarExp e, Env env) {
+		String name = e.name();
+		int depth = e.depth();
+		int slot = e.slot();
+		if(depth >= 0)
+			return en -> en.get(depth, slot);
+		if(depth == VarExp.GLOBAL) {
+			Cell cell = e.cell((GlobalEnv) _host.initEnv);
+			return en -> cell.get();
+		}
+		return en -> en.get(name);
+	}
+
+	@Override
+	public Node visit(LetExp e, Env env) {
+		List<String> names = e.names();
+		Node[] value_nodes = compileAll(e.value_exps());
+		Node body = compile(e.body());
+		return en -> {
+			Value[] values = new Value[value_nodes.length];
+			for(int i = 0; i < values.length; i++)
+				values[i] = value_nodes[i].eval(en);
+			return body.eval(new FrameEnv(en, names, values));
+		};
+	}
+
+	@Override
+	public Node visit(DefineDecl d, Env env) {
+		String name = d.name();
+		Node value = compile(d.value_exp());
+		return en -> {
+			((GlobalEnv) _host.initEnv).extend(name, value.eval(en));
+			return new UnitVal();
+		};
+	}
+
+	@Override
+	public Node visit(ReadExp e, Env env) {
+		return interpreted(e);
+	}
+
+	@Override
+	public Node visit(EvalExp e, Env env) {
+		Node code = compile(e.code());
+		return en -> {
+			StringVal programText = (StringVal) code.eval(en);
+			Program p = _host._reader.parse(programText.v());
+			return compileProgram(p).eval(en);
+		};
+	}
+
+	@Override
+	public Node visit(LambdaExp e, Env env) {
+		List<String> formals = e.formals();
+		Node body = e.code(this);
+		if(body == null) {
+			body = compile(e.body());
+			e.setCode(this, body);
+		}
+		Node code = body;
+		if(e.defParam() == null)
+			return en -> new FunVal(e.capture(en, _host.initEnv), e, code);
+		List<String> defName = formals.subList(formals.size() - 1, formals.size());
+		Node defParam = compile(e.defParam());
+		return en -> {
+			Env closure_env = new FrameEnv(e.capture(en, _host.initEnv), defName, new Value[] { defParam.eval(en) });
+			return new FunVal(closure_env, e, code);
+		};
+	}
+
+	@Override
+	public Node visit(CallExp e, Env env) {
+		Node operator_node = compile(e.operator());
+		Node[] operand_nodes = compileAll(e.operands());
+		return en -> {
+			Value result = operator_node.eval(en);
+			if(!(result instanceof FunVal))
+				return new DynamicError("Operator not a function in call " +  ts.visit(e, en));
+			FunVal operator = (FunVal) result;
+
+			// Call-by-value semantics
+			Value[] actuals = new Value[operand_nodes.length];
+			for(int i = 0; i < actuals.length; i++)
+				actuals[i] = operand_nodes[i].eval(en);
+
+			// A default parameter that is not overridden stays unbound in the
+			// call frame and is found in the closure's own frame.
+			List<String> formals = operator.formals();
+			if(formals.size()-1 == actuals.length)
+				actuals = Arrays.copyOf(actuals, formals.size());
+			else if(formals.size() != actuals.length)
+				return new DynamicError("Argument mismatch in call " + ts.visit(e, en));
+
+			Env fun_env = new FrameEnv(operator.env(), formals, actuals);
+			if(e.tail())
+				return new TailCall(bodyOf(operator), fun_env);
+			return trampoline(bodyOf(operator).eval(fun_env));
+		};
+	}
+
+	private static Value trampoline(Value result) {
+		while(result instanceof TailCall) {
+			TailCall call = (TailCall) result;
+			result = call._body.eval(call._env);
+		}
+		return result;
+	}
+
+	/** A pending tail call; never escapes the call that runs the trampoline. */
+	static class TailCall implements Value {
+		private Node _body;
+		private Env _env;
+		TailCall(Node body, Env env) {
+			_body = body;
+			_env = env;
+		}
+		public String tostring() { return "<tail call>"; }
+	}
+
+	/** Procedures built by the Evaluator are compiled on their first call. */
+	private Node bodyOf(FunVal f) {
+		Node code = f.code();
+		if(code == null) {
+			code = compile(f.body());
+			f.setCode(code);
+		}
+		return code;
+	}
+
+	@Override
+	public Node visit(IfExp e, Env env) {
+		Node conditional = compile(e.conditional());
+		Node then_node = compile(e.then_exp());
+		Node else_node = compile(e.else_exp());
+		return en -> {
+			Value result = conditional.eval(en);
+			if(!(result instanceof BoolVal))
+				return new DynamicError("Condition not a boolean in expression " +  ts.visit(e, en));
+			if(((BoolVal) result).v())
+				return then_node.eval(en);
+			return else_node.eval(en);
+		};
+	}
+
+	@Override
+	public Node visit(LessExp e, Env env) {
+		Node first = compile(e.first_exp());
+		Node second = compile(e.second_exp());
+		return en -> new BoolVal(num(first, en) < num(second, en));
+	}
+
+	@Override
+	public Node visit(EqualExp e, Env env) {
+		Node first = compile(e.first_exp());
+		Node second = compile(e.second_exp());
+		return en -> new BoolVal(Evaluator.compareValues(first.eval(en), second.eval(en)));
+	}
+
+	@Override
+	public Node visit(GreaterExp e, Env env) {
+		Node first = compile(e.first_exp());
+		Node second = compile(e.second_exp());
+		return en -> new BoolVal(num(first, en) > num(second, en));
+	}
+
+	@Override
+	public Node visit(CarExp e, Env env) {
+		Node arg = compile(e.arg());
+		return en -> ((PairVal) arg.eval(en)).fst();
+	}
+
+	@Override
+	public Node visit(CdrExp e, Env env) {
+		Node arg = compile(e.arg());
+		return en -> ((PairVal) arg.eval(en)).snd();
+	}
+
+	@Override
+	public Node visit(ConsExp e, Env env) {
+		Node fst = compile(e.fst());
+		Node snd = compile(e.snd());
+		return en -> {
+			Value first = fst.eval(en);
+			Value second = snd.eval(en);
+			return new PairVal(first, second);
+		};
+	}
+
+	@Override
+	public Node visit(ListExp e, Env env) {
+		Node[] elem_nodes = compileAll(e.elems());
+		if(elem_nodes.length == 0)
+			return en -> new Null();
+		return en -> {
+			//Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4))
+			Value[] elems = new Value[elem_nodes.length];
+			for(int i = 0; i < elems.length; i++)
+				elems[i] = elem_nodes[i].eval(en);
+			Value result = new Null();
+			for(int i = elems.length-1; i >= 0; i--)
+				result = new PairVal(elems[i], result);
+			return result;
+		};
+	}
+
+	@Override
+	public Node visit(NullExp e, Env env) {
+		Node arg = compile(e.arg());
+		return en -> new BoolVal(arg.eval(en) instanceof Null);
+	}
+
+	@Override
+	public Node visit(NumPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof NumVal);
+	}
+
+	@Override
+	public Node visit(BoolPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof BoolVal);
+	}
+
+	@Override
+	public Node visit(StrPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof StringVal);
+	}
+
+	@Override
+	public Node visit(ProcPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof FunVal);
+	}
+
+	@Override
+	public Node visit(PairPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof PairVal);
+	}
+
+	@Override
+	public Node visit(ListPredExp e, Env env) {
+		return interpreted(e);
+	}
+
+	@Override
+	public Node visit(UnitPredExp e, Env env) {
+		Node exp = compile(e.exp());
+		return en -> new BoolVal(exp.eval(en) instanceof UnitVal);
+	}
+
+	@Override
+	public Node visit(RefExp e, Env env) {
+		Node val = compile(e.val_exp());
+		return en -> _host.heap.ref(val.eval(en));
+	}
+
+	@Override
+	public Node visit(DerefExp e, Env env) {
+		Node loc = compile(e.loc_exp());
+		return en -> _host.heap.deref((RefVal) loc.eval(en));
+	}
+
+	@Override
+	public Node visit(SetrefExp e, Env env) {
+		Node loc = compile(e.loc_exp());
+		Node val = compile(e.val_exp());
+		return en -> _host.heap.setref((RefVal) loc.eval(en), val.eval(en));
+	}
+
+	@Override
+	public Node visit(FreeExp e, Env env) {
+		Node loc = compile(e.loc_exp());
+		return en -> {
+			_host.heap.free((RefVal) loc.eval(en));
+			return new UnitVal();
+		};
+	}
+
+	@Override
+	public Node visit(ArrayExp e, Env env) {
+		return interpreted(e);
+	}
+
+	@Override
+	public Node visit(ArrAssignExp e, Env env) {
+		return interpreted(e);
+	}
+
+	@Override
+	public Node visit(IndexExp e, Env env) {
+		return interpreted(e);
+	}
+
+	@Override
+	public Node visit(ArrayOpExp e, Env env) {
+		return interpreted(e);
+	}
+}
@@ -0,0 +1,57 @@
+package funclang;
+
+/**
+ * Prints Chunks in readable form, one instruction per line, e.g. to look at
+ * the code of the functions the RegisterVM calls most.
+ */
+public class Disassembler {
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	/** The chunk and, after it, every function nested in it. */
+	public String disassemble(Chunk chunk) {
+		StringBuilder out = new StringBuilder();
+		disassemble(chunk, out);
+		return out.toString();
+	}
+
+	private void disassemble(Chunk chunk, StringBuilder out) {
+		out.append(chunk._name).append('\n');
+		out.append("  arity ").append(chunk._arity)
+			.append(", ").append(chunk._registers).append(" registers")
+			.append(", ").append(chunk._calls).append(" calls\n");
+		for(int pc = 0; pc < chunk._code.length; pc += chunk.length(pc))
+			out.append(instruction(chunk, pc)).append('\n');
+		for(Chunk function : chunk._functions) {
+			out.append('\n');
+			disassemble(function, out);
+		}
+	}
+
+	/** One instruction, e.g. "    12  add       r3 r0 r2". */
+	public String instruction(Chunk chunk, int pc) {
+		int[] code = chunk._code;
+		String operands = Chunk.OPERANDS[code[pc]];
+		StringBuilder out = new StringBuilder(String.format("  %4d  %-10s", pc, Chunk.NAMES[code[pc]]));
+		int at = pc + 1;
+		for(char kind : operands.toCharArray()) {
+			int operand = code[at++];
+			switch(kind) {
+			case 'r': out.append(" r").append(operand); break;
+			case 'k': out.append(" ").append(chunk._constants[operand].tostring()); break;
+			case 'n': out.append(" ").append(chunk._names[operand]); break;
+			case 'c': out.append(" ").append(chunk._captured[operand]); break;
+			case 'f': out.append(" #").append(operand); break;
+			case 'x': break;
+			case 't': out.append(" ->").append(operand); break;
+			case 'i': out.append(" ").append(operand); break;
+			case 'o': out.append(" ").append(ArrayOps.NAMES[operand]); break;
+			case '*':
+				for(int i = 0; i < operand; i++)
+					out.append(" r").append(code[at++]);
+				break;
+			}
+		}
+		return out.toString();
+	}
+}
@@ -1,13 +1,19 @@
 package funclang;
 
+import java.util.List;
+
 /**
  * Representation of an environment, which maps variables to values.
+ * Variable names are interned by the AST, so a binding is matched by
+ * comparing references rather than characters. Local environments never
+ * change once built, so threads can share them without locking.
  * 
  * @author hridesh
  *
  */
 public interface Env {
 	Value get (String search_var);
+	Value get (int depth, int slot);
 	boolean isEmpty();
 
 	@SuppressWarnings("serial")
@@ -21,43 +27,142 @@ public interface Env {
 		public Value get (String search_var) {
 			throw new LookupException("No binding found for name: " + search_var);
 		}
+		public Value get (int depth, int slot) {
+			throw new LookupException("No binding found at address: " + depth + ":" + slot);
+		}
 		public boolean isEmpty() { return true; }
 	}
 	
 	static public class ExtendEnv implements Env {
-		private Env _saved_env; 
-		private String _var; 
-		private Value _val; 
+		private final Env _saved_env;
+		private final String _var;
+		private final Value _val;
 		public ExtendEnv(Env saved_env, String var, Value val){
 			_saved_env = saved_env;
 			_var = var;
 			_val = val;
 		}
-		public synchronized Value get (String search_var) {
-			if (search_var.equals(_var))
+		public Value get (String search_var) {
+			if (search_var == _var)
 				return _val;
 			return _saved_env.get(search_var);
 		}
+		public Value get (int depth, int slot) {
+			if (depth == 0)
+				return _val;
+			return _saved_env.get(depth - 1, slot);
+		}
 		public boolean isEmpty() { return false; }
 		public Env saved_env() { return _saved_env; }
 		public String var() { return _var; }
 		public Value val() { return _val; }
 	}
 
+	/**
+	 * A frame binds all names introduced by one let or one call at once.
+	 * Variables resolved by the {@link Resolver} are read by (depth, slot)
+	 * address, where depth counts frames to skip and slot indexes the frame.
+	 * A null slot is treated as unbound here and looked up by name further out.
+	 */
+	static public class FrameEnv implements Env {
+		private final Env _saved_env;
+		private final List<String> _vars;
+		private final Value[] _vals;
+		public FrameEnv(Env saved_env, List<String> vars, Value[] vals){
+			_saved_env = saved_env;
+			_vars = vars;
+			_vals = vals;
+		}
+		public Value get (String search_var) {
+			for (int slot = _vals.length - 1; slot >= 0; slot--)
+				if (_vals[slot] != null && search_var == _vars.get(slot))
+					return _vals[slot];
+			return _saved_env.get(search_var);
+		}
+		public Value get (int depth, int slot) {
+			Env env = this;
+			for (; depth > 0; depth--) {
+				if (!(env instanceof FrameEnv))
+					return env.get(depth, slot);
+				env = ((FrameEnv) env)._saved_env;
+			}
+			if (!(env instanceof FrameEnv))
+				return env.get(0, slot);
+			FrameEnv frame = (FrameEnv) env;
+			Value val = frame._vals[slot];
+			if (val == null)
+				return frame._saved_env.get(frame._vars.get(slot));
+			return val;
+		}
+		public boolean isEmpty() { return false; }
+		public Env saved_env() { return _saved_env; }
+		public List<String> vars() { return _vars; }
+		public Value[] vals() { return _vals; }
+	}
+
+	/**
+	 * The define'd names. Reads take no lock, so programs evaluated on
+	 * several threads do not wait for each other.
+	 *
+	 * Each name is bound to a Cell that it keeps for good; a define only
+	 * changes the value in the cell. A global variable can thus look its cell
+	 * up once and then read it directly, and still see later redefinitions.
+	 */
 	static public class GlobalEnv implements Env {
-		private java.util.Hashtable<String, Value> map;
+		private final java.util.concurrent.ConcurrentHashMap<String, Cell> map;
+		private final java.util.concurrent.atomic.AtomicInteger version; // bumped on every define
 		public GlobalEnv(){
-			map = new java.util.Hashtable<String, Value>();
+			map = new java.util.concurrent.ConcurrentHashMap<String, Cell>();
+			version = new java.util.concurrent.atomic.AtomicInteger();
 		}
-		public synchronized Value get (String search_var) {
-			if(map.containsKey(search_var))
-				return map.get(search_var);
+		public Value get (String search_var) {
+			Cell cell = map.get(search_var);
+			if(cell != null)
+				return cell.get();
 			throw new LookupException("No binding found for name: " + search_var);
 		}
-		public synchronized void extend (String var, Value val) {
-			map.put(var, val);
+		public Value get (int depth, int slot) {
+			throw new LookupException("No binding found at address: " + depth + ":" + slot);
+		}
+		/** The cell of a name, created unbound if the name is not defined yet. */
+		public Cell cell (String var) {
+			Cell cell = map.get(var);
+			if(cell == null)
+				cell = map.computeIfAbsent(var, name -> new Cell(name, this));
+			return cell;
+		}
+		public void extend (String var, Value val) {
+			cell(var)._val = val;
+			version.incrementAndGet();
+		}
+		public int version() { return version.get(); }
+		java.util.Collection<Cell> cells() { return map.values(); }
+		public boolean isEmpty() {
+			for(Cell cell : map.values())
+				if(cell._val != null)
+					return false;
+			return true;
+		}
+	}
+
+	/** The binding of a define'd name in one GlobalEnv. */
+	static public class Cell {
+		private final String _name;
+		private final GlobalEnv _owner;
+		private volatile Value _val; // null until defined
+		Cell(String name, GlobalEnv owner) {
+			_name = name;
+			_owner = owner;
+		}
+		public Value get() {
+			Value val = _val;
+			if(val != null)
+				return val;
+			throw new LookupException("No binding found for name: " + _name);
 		}
-		public boolean isEmpty() { return map.isEmpty(); }
+		public GlobalEnv owner() { return _owner; }
+		/** The value, or null if the name is not defined yet. */
+		Value value() { return _val; }
 	}
 
 }
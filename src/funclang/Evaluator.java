@@ -3,25 +3,63 @@ import static funclang.AST.*;
 import static funclang.Value.*;
 
 import java.lang.reflect.Parameter;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.File;
 import java.io.IOException;
 
 import funclang.Env.*;
-import javafx.util.Pair;
 
 public class Evaluator implements Visitor<Value> {
 	
 	Printer.Formatter ts = new Printer.Formatter();
 
 	Env initEnv = initialEnv(); //New for definelang
-	Heap heap = new Heap16Bit();
-	
+	Heap heap = new PagedHeap();
+	boolean jit = false; // Run hot numeric lambdas as JVM bytecode.
+
+	/*
+	 * With a garbage collector, any ref can collect the heap. Environments
+	 * and values that only Java locals hold at that moment, such as the frame
+	 * of a running let or the operands evaluated so far, are kept on a stack
+	 * of pending roots so that the collector sees them. Releasing a mark also
+	 * drops whatever was kept after it, so early returns need not release.
+	 */
+	GarbageCollector gc = null;
+	private final ArrayList<Object> _pending = new ArrayList<Object>();
+
 	Value valueOf(Program p) {
+		_pending.clear();
 		return (Value) p.accept(this, initEnv);
 	}
 
+	/** Turns garbage collection of the heap on, or off if on is false. */
+	void collect(boolean on) {
+		gc = on ? new GarbageCollector(this) : null;
+		if(heap instanceof GenerationalHeap)
+			((GenerationalHeap) heap).setCollector(gc);
+		else
+			((PagedHeap) heap).setCollector(gc);
+	}
+
+	List<Object> pending() {
+		return _pending;
+	}
+
+	/** Keeps o as a root until released; returns the mark to release to. */
+	private int keep(Object o) {
+		int mark = _pending.size();
+		if(gc != null)
+			_pending.add(o);
+		return mark;
+	}
+
+	private void release(int mark) {
+		if(gc != null)
+			_pending.subList(mark, _pending.size()).clear();
+	}
+
 	public static boolean compareValues(Value val1, Value val2){
 		if(val1 instanceof NumVal && val2 instanceof NumVal){
 			return ((NumVal) val1).v() == ((NumVal) val2).v();
@@ -52,13 +90,9 @@ public class Evaluator implements Visitor<Value> {
 	
 	@Override
 	public Value visit(AddExp e, Env env) {
-		List<Exp> operands = e.all();
-		double result = 0;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result += intermediate.v(); //Semantics of AddExp in terms of the target language.
-		}
-		return new NumVal(result);
+		if(e.state() != Exp.GENERIC)
+			return specialized(e, env);
+		return generic(e, new NumVal(0), 0, env); //Semantics of AddExp in terms of the target language.
 	}
 	
 	@Override
@@ -83,25 +117,17 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(DivExp e, Env env) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v(); 
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result / rVal.v();
-		}
-		return new NumVal(result);
+		if(e.state() != Exp.GENERIC)
+			return specialized(e, env);
+		Value first = ArrayOps.operand((Value) e.all().get(0).accept(this, env));
+		return generic(e, first, 1, env);
 	}
 
 	@Override
 	public Value visit(MultExp e, Env env) {
-		List<Exp> operands = e.all();
-		double result = 1;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result *= intermediate.v(); //Semantics of MultExp.
-		}
-		return new NumVal(result);
+		if(e.state() != Exp.GENERIC)
+			return specialized(e, env);
+		return generic(e, new NumVal(1), 0, env); //Semantics of MultExp.
 	}
 
 	@Override
@@ -117,19 +143,20 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(SubExp e, Env env) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v();
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result - rVal.v();
-		}
-		return new NumVal(result);
+		if(e.state() != Exp.GENERIC)
+			return specialized(e, env);
+		Value first = ArrayOps.operand((Value) e.all().get(0).accept(this, env));
+		return generic(e, first, 1, env);
 	}
 
 	@Override
 	public Value visit(VarExp e, Env env) {
 		// Previously, all variables had value 42. New semantics.
+		int depth = e.depth();
+		if(depth >= 0)
+			return env.get(depth, e.slot());
+		if(depth == VarExp.GLOBAL)
+			return e.cell((GlobalEnv) initEnv).get();
 		return env.get(e.name());
 	}	
 
@@ -137,16 +164,17 @@ public class Evaluator implements Visitor<Value> {
 	public Value visit(LetExp e, Env env) { // New for varlang.
 		List<String> names = e.names();
 		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
+		Value[] values = new Value[value_exps.size()];
+		int mark = keep(values);
 		
-		for(Exp exp : value_exps) 
-			values.add((Value)exp.accept(this, env));
+		for(int index = 0; index < values.length; index++) 
+			values[index] = (Value) value_exps.get(index).accept(this, env);
 		
-		Env new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv(new_env, names.get(index), values.get(index));
+		Env new_env = new FrameEnv(env, names, values);
 
-		return (Value) e.body().accept(this, new_env);		
+		Value result = (Value) e.body().accept(this, new_env);
+		release(mark);
+		return result;
 	}	
 	
 	@Override
@@ -160,11 +188,13 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(LambdaExp e, Env env) { // New for funclang.
+		Env closure_env = e.capture(env, initEnv);
 		if(e.defParam()!=null){
-				env = new ExtendEnv(env, e.formals().get(e.formals().size() - 1),
-						(Value) e.defParam().accept(this, env));
+				List<String> formals = e.formals();
+				closure_env = new FrameEnv(closure_env, formals.subList(formals.size() - 1, formals.size()),
+						new Value[] { (Value) e.defParam().accept(this, env) });
 			}
-		return new Value.FunVal(env, e.formals(), e.body());
+		return new Value.FunVal(closure_env, e);
 	}
 	
 	@Override
@@ -174,26 +204,65 @@ public class Evaluator implements Visitor<Value> {
 			return new Value.DynamicError("Operator not a function in call " +  ts.visit(e, env));
 		Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
 		List<Exp> operands = e.operands();
-
-		// Call-by-value semantics
-		List<Value> actuals = new ArrayList<Value>(operands.size());
-		for(Exp exp : operands) 
-			actuals.add((Value)exp.accept(this, env));
-		
-		List<String> formals = operator.formals();
-		int formaloffset=0;
-		if (formals.size()-1 == actuals.size()){
-			//if default parameter is not overriden
-			formaloffset=1;
-		}
-		else if (formals.size()!=actuals.size())
+		InlineCache.Plan plan = e.cache().lookup(operator, operands.size());
+
+		// Call-by-value semantics. The actuals go straight into the call
+		// frame; a default parameter that is not overridden is left unbound
+		// there and found in the closure's own frame.
+		Value[] values = new Value[Math.max(plan.frameSize(), operands.size())];
+		int mark = keep(operator);
+		keep(values);
+		for(int index = 0; index < operands.size(); index++)
+			values[index] = (Value) operands.get(index).accept(this, env);
+		release(mark);
+
+		if(jit && operator.lambda() != null) {
+			List<Value> actuals = Arrays.asList(values).subList(0, operands.size());
+			Value result_val = BytecodeCompiler.invoke(operator.lambda(), actuals, initEnv);
+			if(result_val != null)
+				return result_val;
+		}
+
+		if(plan.mismatch())
 			return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
-
-		Env fun_env = operator.env();
-		for (int index = 0; index < formals.size()-formaloffset; index++)
-			fun_env = new ExtendEnv(fun_env, formals.get(index), actuals.get(index));
+		Env fun_env = new FrameEnv(operator.env(), operator.formals(), values);
 		
-		return (Value) operator.body().accept(this, fun_env);
+		// A call in tail position hands its body back to the caller's loop
+		// instead of growing the Java stack.
+		if(e.tail())
+			return new TailCall(operator.body(), fun_env);
+		return run(operator.body(), fun_env);
+	}
+
+	/** Calls a function with a ready call frame, on behalf of another engine. */
+	Value apply(Value.FunVal operator, Value[] values) {
+		Env fun_env = new FrameEnv(operator.env(), operator.formals(), values);
+		return run(operator.body(), fun_env);
+	}
+
+	/** Runs a body in its call frame, then the tail calls it hands back. */
+	private Value run(Exp body, Env fun_env) {
+		int mark = keep(fun_env);
+		Value result = (Value) body.accept(this, fun_env);
+		while(result instanceof TailCall) {
+			TailCall call = (TailCall) result;
+			release(mark);
+			keep(call._env);
+			result = (Value) call._body.accept(this, call._env);
+		}
+		release(mark);
+		return result;
+	}
+
+	/** A pending tail call; never escapes the call that runs the trampoline. */
+	static class TailCall implements Value {
+		private Exp _body;
+		private Env _env;
+		TailCall(Exp body, Env env) {
+			_body = body;
+			_env = env;
+		}
+		public String tostring() { return "<tail call>"; }
 	}	
 	
 	@Override
@@ -210,6 +279,15 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(LessExp e, Env env) { // New for funclang.
+		if(e.state() != Exp.GENERIC) {
+			e.specialize(Exp.NUMBER);
+			try {
+				return bool(number(e.first_exp(), env) < number(e.second_exp(), env));
+			} catch (UnexpectedValue u) {
+				e.specialize(Exp.GENERIC);
+				return bool(u.number() < 0); // fails just like the generic path
+			}
+		}
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
 		return new Value.BoolVal(first.v() < second.v());
@@ -217,18 +295,156 @@ public class Evaluator implements Visitor<Value> {
 	
 	@Override
 	public Value visit(EqualExp e, Env env) { // New for funclang.
+		if(e.state() != Exp.GENERIC) {
+			e.specialize(Exp.NUMBER);
+			double first;
+			try {
+				first = number(e.first_exp(), env);
+			} catch (UnexpectedValue u) {
+				e.specialize(Exp.GENERIC);
+				int mark = keep(u.value());
+				Value second = (Value) e.second_exp().accept(this, env);
+				release(mark);
+				return new BoolVal(compareValues(u.value(), second));
+			}
+			try {
+				return bool(first == number(e.second_exp(), env));
+			} catch (UnexpectedValue u) {
+				e.specialize(Exp.GENERIC);
+				return new BoolVal(compareValues(new NumVal(first), u.value()));
+			}
+		}
 		Value first = (Value) e.first_exp().accept(this, env);
+		int mark = keep(first);
 		Value second = (Value) e.second_exp().accept(this, env);
+		release(mark);
 		return new Value.BoolVal(compareValues(first,second));
 	}
 
 	@Override
 	public Value visit(GreaterExp e, Env env) { // New for funclang.
+		if(e.state() != Exp.GENERIC) {
+			e.specialize(Exp.NUMBER);
+			try {
+				return bool(number(e.first_exp(), env) > number(e.second_exp(), env));
+			} catch (UnexpectedValue u) {
+				e.specialize(Exp.GENERIC);
+				return bool(u.number() > 0); // fails just like the generic path
+			}
+		}
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
 		return new Value.BoolVal(first.v() > second.v());
 	}
 	
+	/*
+	 * Arithmetic and comparison nodes specialize themselves on the operand
+	 * types they observe. A node starts out uninitialized, becomes a number
+	 * node on its first execution and then computes with primitive doubles:
+	 * nested number nodes hand each other unboxed results, and literals are
+	 * read without allocating. The first operand of another type deoptimizes
+	 * the node for good, and the generic code above takes over.
+	 *
+	 * An arithmetic node that meets an array finishes the operation on the
+	 * operands it has already evaluated with generic(), and hands the array
+	 * result to whoever asked for a number as an UnexpectedValue.
+	 */
+
+	/** Thrown by number() when an operand turns out not to be a number. */
+	static final class UnexpectedValue extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final Value _value;
+		UnexpectedValue(Value value) {
+			super(null, null, false, false);
+			_value = value;
+		}
+		Value value() { return _value; }
+		/** Casts like the generic path does, so this raises its ClassCastException. */
+		double number() { return ((NumVal) _value).v(); }
+	}
+
+	private static final BoolVal TRUE = new BoolVal(true);
+	private static final BoolVal FALSE = new BoolVal(false);
+
+	private static BoolVal bool(boolean b) {
+		return b ? TRUE : FALSE;
+	}
+
+	/** Evaluates an operand of a number node without boxing where possible. */
+	double number(Exp e, Env env) {
+		Object val;
+		if(e instanceof VarExp)
+			val = visit((VarExp) e, env);
+		else if(e instanceof NumExp)
+			return ((NumExp) e).v();
+		else if(e instanceof CompoundArithExp && ((CompoundArithExp) e).state() != Exp.GENERIC)
+			return arith((CompoundArithExp) e, env);
+		else if(e instanceof IndexExp)
+			return element((IndexExp) e, env);
+		else
+			val = e.accept(this, env);
+		if(val instanceof NumVal)
+			return ((NumVal) val).v();
+		throw new UnexpectedValue((Value) val);
+	}
+
+	/** The number-specialized version of an arithmetic node. */
+	private double arith(CompoundArithExp e, Env env) {
+		e.specialize(Exp.NUMBER);
+		List<Exp> operands = e.all();
+		double result = e instanceof MultExp ? 1 : 0;
+		int i = 0;
+		try {
+			if(e instanceof AddExp) {
+				for(; i<operands.size(); i++)
+					result += number(operands.get(i), env);
+				return result;
+			}
+			if(e instanceof MultExp) {
+				for(; i<operands.size(); i++)
+					result *= number(operands.get(i), env);
+				return result;
+			}
+			result = number(operands.get(0), env);
+			if(e instanceof SubExp)
+				for(i = 1; i<operands.size(); i++)
+					result = result - number(operands.get(i), env);
+			else
+				for(i = 1; i<operands.size(); i++)
+					result = result / number(operands.get(i), env);
+			return result;
+		} catch (UnexpectedValue u) {
+			e.specialize(Exp.GENERIC);
+			if(!(u.value() instanceof ArrayVal))
+				return u.number();
+			Value acc = i == 0 && !(e instanceof AddExp || e instanceof MultExp)
+					? u.value() : ArrayOps.arith(op(e), new NumVal(result), u.value());
+			throw new UnexpectedValue(generic(e, acc, i + 1, env));
+		}
+	}
+
+	/** An arithmetic node run by arith, whose result may be an array after all. */
+	private Value specialized(CompoundArithExp e, Env env) {
+		try {
+			return new NumVal(arith(e, env));
+		} catch (UnexpectedValue u) {
+			return u.value();
+		}
+	}
+
+	/** Combines acc with the operands of e from the given one on, evaluated one at a time. */
+	private Value generic(CompoundArithExp e, Value acc, int from, Env env) {
+		List<Exp> operands = e.all();
+		char op = op(e);
+		for(int i=from; i<operands.size(); i++)
+			acc = ArrayOps.arith(op, acc, (Value) operands.get(i).accept(this, env)); // Dynamic type-checking
+		return acc;
+	}
+
+	private static char op(CompoundArithExp e) {
+		return e instanceof AddExp ? '+' : e instanceof SubExp ? '-' : e instanceof MultExp ? '*' : '/';
+	}
+
 	@Override
 	public Value visit(CarExp e, Env env) { 
 		Value.PairVal pair = (Value.PairVal) e.arg().accept(this, env);
@@ -244,7 +460,9 @@ public class Evaluator implements Visitor<Value> {
 	@Override
 	public Value visit(ConsExp e, Env env) { 
 		Value first = (Value) e.fst().accept(this, env);
+		int mark = keep(first);
 		Value second = (Value) e.snd().accept(this, env);
+		release(mark);
 		return new Value.PairVal(first, second);
 	}
 
@@ -257,8 +475,10 @@ public class Evaluator implements Visitor<Value> {
 		
 		//Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4)) 
 		Value[] elems = new Value[length];
+		int mark = keep(elems);
 		for(int i=0; i<length; i++)
 			elems[i] = (Value) elemExps.get(i).accept(this, env);
+		release(mark);
 		
 		Value result = new Value.Null();
 		for(int i=length-1; i>=0; i--) 
@@ -357,7 +577,11 @@ public class Evaluator implements Visitor<Value> {
 	public Value visit(SetrefExp e, Env env) {
 		Exp loc_exp = e.loc_exp();
 		Exp val_exp = e.val_exp();
-		return heap.setref((RefVal)loc_exp.accept(this,env), (Value)val_exp.accept(this,env));
+		RefVal loc = (RefVal)loc_exp.accept(this,env);
+		int mark = keep(loc);
+		Value val = (Value)val_exp.accept(this,env);
+		release(mark);
+		return heap.setref(loc, val);
 	}
 
 	@Override
@@ -385,13 +609,9 @@ public class Evaluator implements Visitor<Value> {
 	@Override
 	public Value visit(ArrayExp e, Env env) {
 		List<Exp> dims = e.dims();
-		List<Integer> dim_list = new ArrayList<>();
-		int total_nums = 1;
-		if(dims.size() == 0){
-			total_nums = 0;
-		}
-		for(Exp exp: dims){
-			Value val = (Value)exp.accept(this , env);
+		int[] dim_list = new int[dims.size()];
+		for(int i = 0; i < dim_list.length; i++){
+			Value val = (Value)dims.get(i).accept(this , env);
 			if(val instanceof DynamicError){
 				return val;
 			}
@@ -402,127 +622,118 @@ public class Evaluator implements Visitor<Value> {
 			if(dim <= 0){
 				return new DynamicError("Error: Array sizes cannot be negative.");
 			}
-			dim_list.add(dim);
-			total_nums *= dim;
+			dim_list[i] = dim;
 		}
-		List<RefVal> r_vals = new ArrayList<>();
-		for(int i = 0; i < total_nums; i++){
-			Value res = heap. ref(new NumVal(0));
-			if(res instanceof DynamicError){
-				return res;
-			}
-			r_vals.add((RefVal)res);
+		if(ArrayVal.size(dim_list) < 0){
+			return new DynamicError("Error: Array sizes are too large.");
 		}
-		return new ArrayVal(dim_list, r_vals ,heap);
+		return new ArrayVal(dim_list);
 	}
 	@Override
 	public Value visit(IndexExp e, Env env) {
-		List<Exp> indices = e.indices();
-		Exp array = e.array();
-		Value arr = (Value)array.accept(this , env);
-		if(! (arr instanceof ArrayVal)){
-			return new DynamicError("Error: First argument must be an array.");
-		}
-		if(((ArrayVal)arr).getDimentions(). size() == 0){
-			return new DynamicError("Error: An empty array has no elements to index.");
-		}
-		List<Integer> requestedIndex = new ArrayList<>();
-		int i = 0;
-		for(Exp exp: indices){
-			Value val = (Value)exp.accept(this , env);
-			if(val instanceof DynamicError){
-				return val;
-			}
-			if(!(val instanceof NumVal) || ((NumVal)val).v() != Math. floor(((NumVal)val).v()) || ((int) ((NumVal)val
-			).v() <= 0)){
-				return new DynamicError("Error: Array indices should be positive integers.");
-			}
-			int index = (int) ((NumVal)val).v();
-			if(index > ((ArrayVal)arr).getDimentions().get(i )){
-				return new DynamicError("Error: Indices should not exceed their relevant array size.");
-			}
-			requestedIndex.add(index);
-			i++;
+		try {
+			return new NumVal(element(e, env));
+		} catch (UnexpectedValue u) {
+			return u.value();
 		}
-		i = 0;
-//Now, using indicesEval , compute the index we want to access!
-		if(requestedIndex. size() != ((ArrayVal)arr).getDimentions(). size()){
-			return new DynamicError("Error: Too many or too few indices for this array.");
+	}
+
+	/**
+	 * The element an IndexExp reads. The indices are evaluated by number(),
+	 * so literal, variable and arithmetic indices are not boxed, and a
+	 * number node that reads an element does not box it either. An error is
+	 * thrown as an UnexpectedValue holding it, as number() does.
+	 */
+	double element(IndexExp e, Env env) {
+		Value arr = (Value)e.arr().accept(this , env);
+		if(! (arr instanceof ArrayVal)){
+			throw error("Error: First argument must be an array.");
 		}
-		int index = getIndex(requestedIndex, ((ArrayVal)arr).getDimentions());
-		return heap.deref(((ArrayVal)arr).getVals().get(index));
+		return ((ArrayVal)arr).elems()[offset((ArrayVal)arr, e.idxs(), true, env)];
 	}
+
 	@Override
 	public Value visit(ArrAssignExp e, Env env) {
-		List<Exp> indices = e.indices();
-		Exp array = e.getArr();
-		Value arr = (Value)array.accept(this , env);
+		Value arr = (Value)e.arr().accept(this , env);
 		if(arr instanceof DynamicError){
 			return arr;
 		}
 		if(! (arr instanceof ArrayVal)){
 			return new DynamicError("Error: First argument must be an array.");
 		}
-		if(((ArrayVal)arr).getDimentions(). size() == 0){
-			return new DynamicError("Error: An empty array has no elements to index.");
-		}
-		List<Integer> indicesEval = new ArrayList<>();
-		int i = 0;
-		for(Exp exp: indices){
-			Value val = (Value)exp.accept(this , env);
-			if(val instanceof DynamicError){
-				return val;
+		try {
+			int offset = offset((ArrayVal)arr, e.idxs(), false, env);
+//Check the new value
+			double toChange;
+			try {
+				toChange = number(e.val(), env);
+			} catch (UnexpectedValue u) {
+				if(u.value() instanceof DynamicError)
+					return u.value();
+				return new DynamicError("Error: Current functionality allows only numeric arrays.");
 			}
-			if(!(val instanceof NumVal) || ((NumVal)val).v() != Math. floor(((NumVal)val).v())){
-				return new DynamicError("Error: Array indices should be integers.");
+//Store straight into the array's elements and return the array.
+			((ArrayVal)arr).elems()[offset] = toChange;
+			return arr;
+		} catch (UnexpectedValue u) {
+			return u.value();
+		}
+	}
+
+	/**
+	 * Evaluates the indices of an element of arr, left to right, and adds
+	 * them up with the offset and strides of arr. Index expressions ask for positive
+	 * integers in one message, assignments in two.
+	 */
+	private int offset(ArrayVal arr, List<Exp> indices, boolean positive, Env env) {
+		int[] dims = arr.dims();
+		if(dims.length == 0){
+			throw error("Error: An empty array has no elements to index.");
+		}
+		int[] strides = arr.strides();
+		int offset = arr.offset();
+		for(int i = 0; i < indices.size(); i++){
+			double val;
+			try {
+				val = number(indices.get(i), env);
+			} catch (UnexpectedValue u) {
+				if(u.value() instanceof DynamicError)
+					throw u;
+				val = Double.NaN;
 			}
-			int index = ((Double)((NumVal)val).v()).intValue();
-			if(index<= 0){
-				return new DynamicError("Error: Indices must be positive.");
+			if(val != Math.floor(val) || positive && (int) val <= 0){
+				throw error(positive ? "Error: Array indices should be positive integers." : "Error: Array indices should be integers.");
 			}
-			if(index > ((ArrayVal)arr).getDimentions().get(i )){
-				return new DynamicError("Error: Indices should not exceed their relevant array size.");
+			int index = (int) val;
+			if(index <= 0){
+				throw error("Error: Indices must be positive.");
 			}
-			indicesEval.add(index);
-			i++;
-		}
-//Now, using indicesEval , compute the index we want to access!
-		if(indicesEval. size() != ((ArrayVal)arr).getDimentions(). size()){
-			return new DynamicError("Error: Too many or too few indices for this array.");
-		}
-		List<Integer> dims = ((ArrayVal)arr).getDimentions();
-		int index = getIndex(indicesEval, dims);
-//Check the new value
-		Value toChange = (Value)e.val().accept(this , env);
-		if(toChange instanceof DynamicError){
-			return toChange;
-		}
-		if(!(toChange instanceof NumVal)){
-			return new DynamicError("Error: Current functionality allows only numeric arrays.");
-		}
-//Update the reference and return the array.
-		heap. setref(((ArrayVal)arr).getVals().get(index) ,toChange);
-		return arr;
-	}
-	//private helper to transform a l is t of indices into the index of the 1D RefVal array.
-	private int getIndex(List<Integer> indicesEval, List<Integer> dims) {
-//First , for a one dimensional array, the index is just the index we found (−1 because 0 indexing) .
-		if (indicesEval.size() == 1) {
-			return indicesEval.get(0) −1;
-		}
-//Due to the way this homework is set up, we always have to add the f irst coordinate and the colNum∗
-		secondCoordinate.
-		int index = (indicesEval.get(1) −1)+(indicesEval.get(0) −1) ∗(dims.get(1));
-//The remainder of the coordinates are multiplied by a factor based on the arr dimensions.
-		for (int i = 2; i < indicesEval.size(); i++) {
-			int multFactor = 1;
-			for (int j = 0; j < i; j++) {
-				multFactor ∗=dims.get(j);
+			if(i >= dims.length || index > dims[i]){
+				throw error("Error: Indices should not exceed their relevant array size.");
 			}
-			index += (indicesEval.get(i) −1) ∗multFactor;
+			offset += (index - 1) * strides[i];
+		}
+		if(indices.size() != dims.length){
+			throw error("Error: Too many or too few indices for this array.");
 		}
-		return index;
+		return offset;
+	}
+
+	private static UnexpectedValue error(String message) {
+		return new UnexpectedValue(new DynamicError(message));
 	}
+
+	@Override
+	public Value visit(ArrayOpExp e, Env env) {
+		List<Exp> arg_exps = e.args();
+		Value[] args = new Value[arg_exps.size()];
+		int mark = keep(args);
+		for(int i = 0; i < args.length; i++)
+			args[i] = (Value) arg_exps.get(i).accept(this, env);
+		release(mark);
+		return ArrayOps.apply(e.op(), args);
+	}
+
 	private Env initialEnv() {
 		GlobalEnv initEnv = new GlobalEnv();
 		
@@ -539,11 +750,25 @@ public class Evaluator implements Visitor<Value> {
 		body = new EvalExp(new AST.ReadExp(new VarExp("file")));
 		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, body);
 		initEnv.extend("require", requireFun);
+
+		/* Procedures on whole arrays. Following is same as (define array-dot (lambda (a b) (array-dot a b))) */
+		arrayProcedure(initEnv, ArrayOps.SUM, "a");
+		arrayProcedure(initEnv, ArrayOps.DOT, "a", "b");
+		arrayProcedure(initEnv, ArrayOps.SCALE, "s", "x");
+		arrayProcedure(initEnv, ArrayOps.AXPY, "s", "x", "y");
+		arrayProcedure(initEnv, ArrayOps.MATMUL, "a", "b");
 		
 		/* Add new built-in procedures here */ 
 		
 		return initEnv;
 	}
+
+	private static void arrayProcedure(GlobalEnv initEnv, int op, String... formals) {
+		List<Exp> args = new ArrayList<>();
+		for(String formal : formals)
+			args.add(new VarExp(formal));
+		initEnv.extend(ArrayOps.NAMES[op], new Value.FunVal(initEnv, Arrays.asList(formals), new ArrayOpExp(op, args)));
+	}
 	
 	Reader _reader; 
 	public Evaluator(Reader reader) {
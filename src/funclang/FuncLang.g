@@ -40,6 +40,8 @@ import ListLang; //Import all rules from ListLang grammar.
         | arr=arrayexp { $ast = $arr.ast; }
         | idx=indexexp { $ast = $idx.ast; }
         | arras=arrayassignexp { $ast = $arras.ast; }
+        | arrop=arrayopexp { $ast = $arrop.ast; }
+        | arrproc=arrayprocexp { $ast = $arrproc.ast; }
         ;
 
  lambdaexp returns [LambdaExp ast] 
@@ -139,6 +141,16 @@ import ListLang; //Import all rules from ListLang grammar.
          _val=exp
         ')' { $ast = new ArrAssignExp($arr.ast, $idxs, $_val.ast); }
         ;
+ arrayopexp returns [ArrayOpExp ast]
+ locals [ArrayList<Exp> args = new ArrayList<Exp>(); ]:
+        '(' op=( 'array-get-row' | 'array-set-range' | 'array-slice' | 'array-transpose' | 'array-reshape' ) ( e=exp { $args.add($e.ast); } ) *
+        ')' { $ast = new ArrayOpExp($op.text, $args); }
+        ;
+
+ // Names of the array procedures in the initial environment that are not Identifiers.
+ arrayprocexp returns [VarExp ast] :
+        name=( 'array-sum' | 'array-dot' | 'array-scale' | 'array-axpy' ) { $ast = new VarExp($name.text); }
+        ;
 
 Numpred : 'number?';
 Boolpred : 'boolean?';
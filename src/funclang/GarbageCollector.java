@@ -0,0 +1,139 @@
+package funclang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import funclang.Env.*;
+import funclang.Value.*;
+
+/**
+ * A mark-sweep collector for a PagedHeap, run by the heap when a program has
+ * made enough refs. It marks every slot reachable from the roots of the
+ * Evaluator it serves and frees the rest, so a program no longer has to free
+ * what it allocates. A GenerationalHeap instead uses it only to trace the
+ * roots, and does its own copying.
+ *
+ * The roots are the define'd names, the environments and half-built values
+ * the Evaluator has pending, and the value being stored by the ref that
+ * started the collection. From them the collector follows environments,
+ * closures, pairs and the contents of marked slots. It uses a work
+ * list rather than recursion, so long lists do not overflow the stack.
+ *
+ * Every collection is timed; the log holds one line per collection until the
+ * Interpreter prints and clears it.
+ */
+public class GarbageCollector {
+
+	private final Evaluator _eval;
+	private final List<String> _log = new ArrayList<String>();
+	private int _collections = 0;
+	private long _reclaimed = 0;
+	private long _totalPause = 0; // nanoseconds
+	private long _maxPause = 0;
+
+	GarbageCollector(Evaluator eval) {
+		_eval = eval;
+	}
+
+	/** Collects the heap; pending is a value that is about to be stored in it. */
+	void collect(PagedHeap heap, Value pending) {
+		long start = System.nanoTime();
+		int before = heap.live();
+		trace(heap::mark, pending);
+		int freed = heap.sweep();
+		record("gc", freed, before, heap.live(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Walks everything reachable from the roots and the extra roots given,
+	 * handing each RefVal found to slots. What slots returns, normally the
+	 * contents of the slot the first time it is seen, is walked in turn; null
+	 * stops there.
+	 */
+	void trace(Function<RefVal, Value> slots, Object... extra) {
+		Tracer tracer = new Tracer(slots);
+		tracer.push(_eval.initEnv);
+		tracer.push(_eval.pending());
+		for(Object root : extra)
+			tracer.push(root);
+		tracer.run();
+	}
+
+	/** Adds a collection of the given kind to the statistics and the log. */
+	void record(String kind, int freed, int before, int live, long pause) {
+		_collections++;
+		_reclaimed += freed;
+		_totalPause += pause;
+		_maxPause = Math.max(_maxPause, pause);
+		_log.add(String.format("%s #%d: reclaimed %d of %d cells, %d live, %.3f ms",
+				kind, _collections, freed, before, live, pause / 1e6));
+	}
+
+	public int collections() { return _collections; }
+	public long reclaimed() { return _reclaimed; }
+	public long totalPauseNanos() { return _totalPause; }
+	public long maxPauseNanos() { return _maxPause; }
+
+	/** One line per collection since the log was last cleared. */
+	public List<String> log() { return _log; }
+
+	public String summary() {
+		return String.format("%d collections, %d cells reclaimed, %.3f ms paused (longest %.3f ms)",
+				_collections, _reclaimed, _totalPause / 1e6, _maxPause / 1e6);
+	}
+
+	private static class Tracer {
+		private final Function<RefVal, Value> _slots;
+		private final ArrayDeque<Object> _work = new ArrayDeque<Object>();
+		private final Set<Object> _seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+		Tracer(Function<RefVal, Value> slots) {
+			_slots = slots;
+		}
+
+		void push(Object o) {
+			if(o != null)
+				_work.push(o);
+		}
+
+		void run() {
+			while(!_work.isEmpty()) {
+				Object o = _work.pop();
+				if(o instanceof RefVal) {
+					push(_slots.apply((RefVal) o));
+					continue;
+				}
+				if(!_seen.add(o))
+					continue;
+				if(o instanceof FrameEnv) {
+					FrameEnv frame = (FrameEnv) o;
+					for(Value val : frame.vals())
+						push(val);
+					push(frame.saved_env());
+				} else if(o instanceof ExtendEnv) {
+					push(((ExtendEnv) o).val());
+					push(((ExtendEnv) o).saved_env());
+				} else if(o instanceof GlobalEnv) {
+					for(Cell cell : ((GlobalEnv) o).cells())
+						push(cell.value());
+				} else if(o instanceof FunVal) {
+					push(((FunVal) o).env());
+				} else if(o instanceof PairVal) {
+					push(((PairVal) o).fst());
+					push(((PairVal) o).snd());
+				} else if(o instanceof Value[]) {
+					for(Value val : (Value[]) o)
+						push(val);
+				} else if(o instanceof List) {
+					for(Object elem : (List<?>) o)
+						push(elem);
+				}
+			}
+		}
+	}
+}
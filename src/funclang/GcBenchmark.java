@@ -0,0 +1,72 @@
+package funclang;
+
+/**
+ * Compares the three heaps on funclang loops that make a ref per iteration:
+ * Heap16Bit, which the program has to free itself; a PagedHeap collected by
+ * mark-sweep; and a GenerationalHeap. Each loop runs with no other data
+ * live, and again with a list of long-lived refs that every full collection
+ * has to trace.
+ *
+ * For each heap it reports the allocation rate, the number of collections
+ * and the total and longest pause. Run with an optional number of
+ * iterations, e.g. java funclang.GcBenchmark 1000000
+ */
+public class GcBenchmark {
+
+	static final String[] DEFINES = {
+		"(define churn (lambda (n) (if (= n 0) 0 (let ((loc (ref n))) (churn (- n 1))))))",
+		"(define churnfree (lambda (n) (if (= n 0) 0 (let ((loc (ref n))) (let ((u (free loc))) (churnfree (- n 1)))))))",
+		"(define mk (lambda (n acc) (if (= n 0) acc (mk (- n 1) (cons (ref n) acc)))))",
+	};
+
+	static final int LONG_LIVED = 20000;
+
+	interface HeapMaker {
+		Heap make();
+	}
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		System.out.printf("%-22s %-9s %14s %8s %12s %12s%n", "heap", "live", "alloc/s", "gcs", "pause ms", "max ms");
+		for(int live : new int[] { 0, LONG_LIVED }) {
+			run("Heap16Bit, free", () -> new Heap16Bit(), false, live, n);
+			run("PagedHeap, mark-sweep", () -> new PagedHeap(), true, live, n);
+			run("GenerationalHeap", () -> new GenerationalHeap(), true, live, n);
+		}
+	}
+
+	static void run(String name, HeapMaker heaps, boolean collect, int live, int n) {
+		time(setup(heaps, collect, live), collect, n); // warm-up
+		Evaluator eval = setup(heaps, collect, live);
+		double seconds = time(eval, collect, n);
+		GarbageCollector gc = eval.gc;
+		System.out.printf("%-22s %-9d %14.0f %8s %12s %12s%n", name, live, n / seconds,
+				gc == null ? "-" : "" + gc.collections(),
+				gc == null ? "-" : String.format("%.1f", gc.totalPauseNanos() / 1e6),
+				gc == null ? "-" : String.format("%.3f", gc.maxPauseNanos() / 1e6));
+	}
+
+	/** An evaluator with the loops defined and the long-lived list made. */
+	static Evaluator setup(HeapMaker heaps, boolean collect, int live) {
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		eval.heap = heaps.make();
+		eval.collect(collect);
+		for(String define : DEFINES)
+			eval.valueOf(reader.parse(define));
+		eval.valueOf(reader.parse("(define keep (mk " + live + " (list)))"));
+		eval.collect(collect); // counts only what the loop collects
+		return eval;
+	}
+
+	/** Seconds taken by n iterations of the loop. */
+	static double time(Evaluator eval, boolean collect, int n) {
+		AST.Program p = eval._reader.parse("(" + (collect ? "churn " : "churnfree ") + n + ")");
+		long start = System.nanoTime();
+		Value result = eval.valueOf(p);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if(!(result instanceof Value.NumVal))
+			throw new IllegalStateException(result.tostring());
+		return seconds;
+	}
+}
@@ -0,0 +1,56 @@
+package funclang;
+
+/**
+ * Checks that a GenerationalHeap keeps reporting a freed ref as dangling
+ * once collections have run: first a minor collection, then a major one,
+ * each time dereferencing a ref that was freed before it. The nursery is
+ * kept small so that a short loop fills it many times over.
+ *
+ * Prints each check and throws IllegalStateException on the first that
+ * fails, e.g. java funclang.GcCheck
+ */
+public class GcCheck {
+
+	static final String[] DEFINES = {
+		"(define churn (lambda (n) (if (= n 0) 0 (let ((loc (ref n))) (churn (- n 1))))))",
+		"(define mk (lambda (n acc) (if (= n 0) acc (mk (- n 1) (cons (ref n) acc)))))",
+	};
+
+	public static void main(String[] args) {
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		GenerationalHeap heap = new GenerationalHeap(8192, 64);
+		eval.heap = heap;
+		eval.collect(true);
+		for(String define : DEFINES)
+			eval.valueOf(reader.parse(define));
+
+		check(eval, "(let ((r (ref 1))) (let ((u (free r))) (let ((j (churn 1000))) (deref r))))",
+				"Dangling reference");
+		eval.valueOf(reader.parse("(define r (ref 2))"));
+		eval.valueOf(reader.parse("(define u (free r))"));
+		eval.valueOf(reader.parse("(churn 1000)"));
+		if(heap.minorCollections() == 0)
+			throw new IllegalStateException("no minor collection");
+		check(eval, "(deref r)", "Dangling reference");
+
+		eval.valueOf(reader.parse("(define s (ref 3))"));
+		eval.valueOf(reader.parse("(define v (free s))"));
+		for(int i = 0; heap.majorCollections() == 0; i++) {
+			if(i == 20)
+				throw new IllegalStateException("no major collection");
+			eval.valueOf(reader.parse("(define keep (mk 1000 (list)))")); // the last list is now garbage
+		}
+		check(eval, "(deref s)", "Dangling reference");
+		check(eval, "(deref r)", "Dangling reference");
+		System.out.printf("ok: %d minor and %d major collections%n", heap.minorCollections(), heap.majorCollections());
+	}
+
+	static void check(Evaluator eval, String program, String error) {
+		Value result = eval.valueOf(eval._reader.parse(program));
+		String text = result == null ? "null" : result.tostring();
+		if(!(result instanceof Value.DynamicError) || !text.contains(error))
+			throw new IllegalStateException(program + " gave " + text + " instead of " + error);
+		System.out.println(program + " => " + text);
+	}
+}
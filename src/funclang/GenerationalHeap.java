@@ -0,0 +1,312 @@
+package funclang;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import funclang.Value.*;
+
+/**
+ * A heap in two generations. New refs are made in a small nursery by bumping
+ * a pointer. When the nursery is full, the refs in it that are still
+ * reachable are copied to the end of the old space and the whole nursery is
+ * reused, which is cheap when, as usual, most refs die young. This minor
+ * collection does not look inside old slots other than those written by
+ * setref since the last collection, as only they can hold refs to the
+ * nursery.
+ *
+ * Old space grows as needed up to the capacity. Once it has grown past a
+ * threshold, a major collection marks everything reachable and slides the
+ * live slots of both generations to the start of old space, so old space
+ * never fragments and is only ever allocated at its end.
+ *
+ * Moving a slot rewrites the RefVals that the collector finds pointing at it.
+ * Every ref has a stamp, unique to it and kept when it moves, in place of
+ * the slot generation of a PagedHeap: a freed slot has stamp 0, and a RefVal
+ * whose stamp does not match its slot is dangling. A collection that finds
+ * a dangling ref gives it the stamp -1, which no slot ever has, so it stays
+ * dangling when its slot is reused. Without a GarbageCollector to find the
+ * roots nothing can move, and refs go straight to old space once the
+ * nursery is full.
+ */
+class GenerationalHeap implements Heap{
+
+    static final int DEFAULT_NURSERY = 1 << 16;
+    static final int MIN_THRESHOLD = 1 << 16;
+    static final int DANGLING = -1;
+
+    private final int _capacity;
+    private final Value[] _young;
+    private final int[] _youngStamp;
+    private final int[] _forward; // where each young slot went, during a collection
+    private int _top = 0;
+
+    private Value[] _old = new Value[1024];
+    private int[] _oldStamp = new int[1024];
+    private boolean[] _dirty = new boolean[1024]; // set by setref since the last collection
+    private int[] _remembered = new int[64]; // the dirty slots
+    private int _dirtyCount = 0;
+    private int _oldTop = 0;
+    private int _threshold;
+
+    private int _stamp = 0;
+    private int _minors = 0;
+    private int _majors = 0;
+    private GarbageCollector _collector;
+
+    GenerationalHeap(){
+        this(PagedHeap.DEFAULT_CAPACITY, DEFAULT_NURSERY);
+    }
+
+    /** A heap of up to capacity slots in all, nursery of them young. */
+    GenerationalHeap(int capacity, int nursery){
+        if(nursery <= 0 || capacity <= nursery)
+            throw new IllegalArgumentException("Bad heap capacity " + capacity + " or nursery size " + nursery);
+        _capacity = capacity;
+        _young = new Value[nursery];
+        _youngStamp = new int[nursery];
+        _forward = new int[nursery];
+        _threshold = Math.min(capacity - nursery, MIN_THRESHOLD);
+    }
+
+    public int capacity(){
+        return _capacity;
+    }
+
+    public int nursery(){
+        return _young.length;
+    }
+
+    public int minorCollections(){
+        return _minors;
+    }
+
+    public int majorCollections(){
+        return _majors;
+    }
+
+    /** Collect with the given collector from now on, or never if null. */
+    public void setCollector(GarbageCollector collector){
+        _collector = collector;
+    }
+
+    @Override
+    public Value ref(Value val) {
+        if(_top == _young.length){
+            if(_collector == null)
+                return refOld(val);
+            collect(val);
+            if(_top == _young.length)
+                return new DynamicError("<Error: Out of memory>");
+        }
+        int stamp = stamp();
+        _young[_top] = val;
+        _youngStamp[_top] = stamp;
+        return new RefVal(_top++, stamp);
+    }
+
+    private Value refOld(Value val) {
+        if(!reserve(1))
+            return new DynamicError("<Error: Out of memory>");
+        int stamp = stamp();
+        _old[_oldTop] = val;
+        _oldStamp[_oldTop] = stamp;
+        return new RefVal(_young.length + _oldTop++, stamp);
+    }
+
+    @Override
+    public Value deref(RefVal loc) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        int slot = loc.loc();
+        return slot < _young.length ? _young[slot] : _old[slot - _young.length];
+    }
+
+    @Override
+    public Value setref(RefVal loc, Value val) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        int slot = loc.loc();
+        if(slot < _young.length)
+            return _young[slot] = val;
+        slot -= _young.length;
+        if(!_dirty[slot]){
+            _dirty[slot] = true;
+            if(_dirtyCount == _remembered.length)
+                _remembered = Arrays.copyOf(_remembered, 2 * _dirtyCount);
+            _remembered[_dirtyCount++] = slot;
+        }
+        return _old[slot] = val;
+    }
+
+    @Override
+    public Value free(RefVal loc) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        int slot = loc.loc();
+        if(slot < _young.length){
+            _young[slot] = null;
+            _youngStamp[slot] = 0;
+        } else {
+            _old[slot - _young.length] = null;
+            _oldStamp[slot - _young.length] = 0;
+        }
+        return loc;
+    }
+
+    /** The error for a ref that is not to a live slot, or null if it is. */
+    private Value check(RefVal loc) {
+        int slot = loc.loc();
+        if(slot < 0 || slot >= _young.length + _oldTop)
+            return new DynamicError("<Error: Segmentation Fault at location: " +loc +">");
+        int stamp = slot >= _young.length ? _oldStamp[slot - _young.length] : slot < _top ? _youngStamp[slot] : 0;
+        if(stamp != loc.generation())
+            return new DynamicError("<Error: Dangling reference to location: " +slot +">");
+        return null;
+    }
+
+    private int stamp(){
+        if(++_stamp <= 0)
+            _stamp = 1;
+        return _stamp;
+    }
+
+    /** Makes room for n more old slots, if the capacity allows. */
+    private boolean reserve(int n){
+        int needed = _oldTop + n;
+        if(needed > _capacity - _young.length)
+            return false;
+        if(needed > _old.length){
+            int length = (int) Math.min(_capacity - _young.length, Math.max(needed, 2L * _old.length));
+            _old = Arrays.copyOf(_old, length);
+            _oldStamp = Arrays.copyOf(_oldStamp, length);
+            _dirty = Arrays.copyOf(_dirty, length);
+        }
+        return true;
+    }
+
+    /** Empties the nursery, by a minor collection if old space has room for all of it. */
+    private void collect(Value pending){
+        if(_oldTop < _threshold && reserve(_top))
+            minor(pending);
+        else
+            major(pending);
+    }
+
+    private void minor(Value pending){
+        long start = System.nanoTime();
+        int before = _top;
+        int promoted = _oldTop;
+        Value[] remembered = new Value[_dirtyCount];
+        for(int i = 0; i < _dirtyCount; i++){
+            remembered[i] = _old[_remembered[i]];
+            _dirty[_remembered[i]] = false;
+        }
+        _dirtyCount = 0;
+        Arrays.fill(_forward, 0, _top, -1);
+        _collector.trace(this::promote, pending, remembered);
+        promoted = _oldTop - promoted;
+        Arrays.fill(_young, 0, _top, null);
+        Arrays.fill(_youngStamp, 0, _top, 0);
+        _top = 0;
+        _minors++;
+        _collector.record("minor gc", before - promoted, before, _oldTop, System.nanoTime() - start);
+    }
+
+    /** Copies the young slot of a ref to old space, if not done already. */
+    private Value promote(RefVal ref){
+        int slot = ref.loc();
+        if(slot < 0 || slot >= _young.length)
+            return null; // old slots are not looked into
+        if(_youngStamp[slot] != ref.generation()){
+            ref.forward(slot, DANGLING);
+            return null;
+        }
+        int to = _forward[slot];
+        if(to >= 0){
+            ref.forward(_young.length + to, ref.generation());
+            return null;
+        }
+        to = _forward[slot] = _oldTop++;
+        _old[to] = _young[slot];
+        _oldStamp[to] = _youngStamp[slot];
+        ref.forward(_young.length + to, ref.generation());
+        return _old[to];
+    }
+
+    private void major(Value pending){
+        long start = System.nanoTime();
+        int before = _top + _oldTop;
+        boolean[] young = new boolean[_top];
+        boolean[] old = new boolean[_oldTop];
+        Set<RefVal> refs = Collections.newSetFromMap(new IdentityHashMap<RefVal, Boolean>());
+        _collector.trace(ref -> mark(ref, young, old, refs), pending);
+
+        int live = 0;
+        for(boolean marked : young)
+            if(marked)
+                live++;
+        for(boolean marked : old)
+            if(marked)
+                live++;
+        if(live > _capacity - _young.length){
+            _collector.record("major gc", 0, before, before, System.nanoTime() - start);
+            return; // no room to move the nursery; ref will fail
+        }
+
+        // Slide live old slots down, then append the live young ones.
+        int[] moved = new int[_oldTop];
+        int to = 0;
+        for(int slot = 0; slot < _oldTop; slot++)
+            if(old[slot]){
+                moved[slot] = to;
+                _old[to] = _old[slot];
+                _oldStamp[to] = _oldStamp[slot];
+                to++;
+            }
+        Arrays.fill(_old, to, _oldTop, null);
+        Arrays.fill(_oldStamp, to, _oldTop, 0);
+        Arrays.fill(_dirty, 0, _oldTop, false);
+        _dirtyCount = 0;
+        _oldTop = to;
+        reserve(_top);
+        for(int slot = 0; slot < _top; slot++)
+            if(young[slot]){
+                _forward[slot] = _oldTop;
+                _old[_oldTop] = _young[slot];
+                _oldStamp[_oldTop++] = _youngStamp[slot];
+            }
+        for(RefVal ref : refs){
+            int slot = ref.loc();
+            int at = slot < _young.length ? _forward[slot] : moved[slot - _young.length];
+            ref.forward(_young.length + at, ref.generation());
+        }
+        Arrays.fill(_young, 0, _top, null);
+        Arrays.fill(_youngStamp, 0, _top, 0);
+        _top = 0;
+        _threshold = Math.min(_capacity - _young.length, Math.max(MIN_THRESHOLD, 2 * _oldTop));
+        _majors++;
+        _collector.record("major gc", before - _oldTop, before, _oldTop, System.nanoTime() - start);
+    }
+
+    /** Marks the slot of a ref as reachable, and notes the ref for moving. */
+    private Value mark(RefVal ref, boolean[] young, boolean[] old, Set<RefVal> refs){
+        int slot = ref.loc();
+        boolean isYoung = slot < _young.length;
+        int at = isYoung ? slot : slot - _young.length;
+        if(slot < 0 || at >= (isYoung ? _top : _oldTop)
+                || (isYoung ? _youngStamp : _oldStamp)[at] != ref.generation()){
+            ref.forward(slot, DANGLING);
+            return null;
+        }
+        refs.add(ref);
+        boolean[] marks = isYoung ? young : old;
+        if(marks[at])
+            return null;
+        marks[at] = true;
+        return isYoung ? _young[at] : _old[at];
+    }
+}
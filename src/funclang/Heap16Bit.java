@@ -0,0 +1,11 @@
+package funclang;
+
+/** The original heap: 65,536 slots in a single page. */
+class Heap16Bit extends PagedHeap{
+
+    static final int HEAP_SIZE = 65536;
+
+    Heap16Bit(){
+        super(HEAP_SIZE, HEAP_SIZE);
+    }
+}
@@ -0,0 +1,58 @@
+package funclang;
+
+import funclang.AST.*;
+import funclang.Value.*;
+
+/**
+ * Measures how fast Heap16Bit recycles memory. It first churns the heap
+ * directly, keeping a window of refs live and freeing the oldest one for
+ * every new one, and then runs a funclang loop that allocates and frees a ref
+ * per iteration, far more often than the heap has slots.
+ *
+ * Run with an optional number of allocations, e.g. java funclang.HeapBenchmark 10000000
+ */
+public class HeapBenchmark {
+
+	static final int[] LIVE = { 1, 64, 4096, 60000 };
+
+	static final String CHURN = "(define churn (lambda (n) (if (= n 0) 0 (let ((r (ref n))) (let ((u (free r))) (churn (- n 1)))))))";
+
+	public static void main(String[] args) {
+		int allocations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+		System.out.printf("%-10s %16s%n", "live refs", "alloc+free/s");
+		for(int live : LIVE) {
+			churn(live, allocations); // warm-up
+			long start = System.nanoTime();
+			churn(live, allocations);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-10d %16.0f%n", live, allocations / seconds);
+		}
+
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		eval.heap = new Heap16Bit();
+		eval.valueOf(reader.parse(CHURN));
+		int n = Math.min(allocations, 1000000);
+		Program p = reader.parse("(churn " + n + ")");
+		long start = System.nanoTime();
+		Value result = eval.valueOf(p);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%n(churn %d) => %s, %.0f alloc+free/s%n", n, result.tostring(), n / seconds);
+	}
+
+	/** Allocates the given number of refs, keeping the last few live. */
+	static void churn(int live, int allocations) {
+		Heap heap = new Heap16Bit();
+		RefVal[] window = new RefVal[live];
+		for(int i = 0; i < allocations; i++) {
+			int slot = i % live;
+			if(window[slot] != null)
+				heap.free(window[slot]);
+			Value ref = heap.ref(new NumVal(i));
+			if(!(ref instanceof RefVal))
+				throw new IllegalStateException(ref.tostring() + " after " + i + " allocations");
+			window[slot] = (RefVal) ref;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package funclang;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import funclang.AST.LambdaExp;
+import funclang.Value.FunVal;
+
+/**
+ * The inline cache of one call site. It remembers the lambdas called from the
+ * site together with their binding plan, so that calling one of them again
+ * skips the arity and default-parameter checks. A site stays monomorphic or
+ * polymorphic up to MAX_TARGETS lambdas; after that it is megamorphic and new
+ * targets are no longer cached.
+ *
+ * Threads may share a site. The plans are an immutable array that a miss
+ * replaces with a longer copy under the cache's lock, so a lookup reads it
+ * once without locking and always sees complete plans.
+ */
+public class InlineCache {
+	static final int MAX_TARGETS = 4;
+
+	/** How the actuals of a call bind to the formals of a function. */
+	static class Plan {
+		private final LambdaExp _lambda;
+		private final int _frameSize;
+		private final boolean _mismatch;
+
+		Plan(LambdaExp lambda, List<String> formals, int actuals) {
+			_lambda = lambda;
+			_frameSize = formals.size();
+			// A default parameter that is not overridden stays unbound in the
+			// call frame and is found in the closure's own frame.
+			_mismatch = actuals != formals.size() && actuals != formals.size() - 1;
+		}
+
+		/** Slots in the call frame; the first actuals.size() are the actuals. */
+		int frameSize() {
+			return _frameSize;
+		}
+
+		boolean mismatch() {
+			return _mismatch;
+		}
+	}
+
+	private volatile Plan[] _plans = new Plan[0];
+	private volatile boolean _megamorphic = false;
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+
+	/** The binding plan for calling a function with the given number of actuals. */
+	Plan lookup(FunVal operator, int actuals) {
+		LambdaExp lambda = operator.lambda();
+		for(Plan plan : _plans)
+			if(plan._lambda == lambda) {
+				_hits.increment();
+				return plan;
+			}
+		_misses.increment();
+		Plan plan = new Plan(lambda, operator.formals(), actuals);
+		// Built-in functions have no lambda and are never cached.
+		if(lambda != null)
+			add(plan);
+		return plan;
+	}
+
+	private synchronized void add(Plan plan) {
+		Plan[] plans = _plans;
+		for(Plan cached : plans)
+			if(cached._lambda == plan._lambda) // another thread got here first
+				return;
+		if(plans.length < MAX_TARGETS) {
+			Plan[] added = Arrays.copyOf(plans, plans.length + 1);
+			added[plans.length] = plan;
+			_plans = added;
+		} else
+			_megamorphic = true;
+	}
+
+	public long hits() {
+		return _hits.sum();
+	}
+
+	public long misses() {
+		return _misses.sum();
+	}
+
+	/** Number of lambdas cached so far. */
+	public int targets() {
+		return _plans.length;
+	}
+
+	public boolean megamorphic() {
+		return _megamorphic;
+	}
+}
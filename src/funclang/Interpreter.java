@@ -19,14 +19,75 @@ public class Interpreter {
 							"Press Ctrl + C to exit.");
 		Reader reader = new Reader();
 		Evaluator eval = new Evaluator(reader);
+		ClosureCompiler compiler = null;
+		CEKMachine machine = null;
+		RegisterVM vm = null;
+		boolean disassemble = false;
+		boolean folds = false;
+		boolean gc = false;
+		boolean generational = false;
+		int nursery = GenerationalHeap.DEFAULT_NURSERY;
+		int heapSize = PagedHeap.DEFAULT_CAPACITY;
+		int pageSize = PagedHeap.DEFAULT_PAGE_SIZE;
+		for(String arg : args)
+			if(arg.equals("-compile")) // Run programs on the closure compiler.
+				compiler = new ClosureCompiler(eval);
+			else if(arg.equals("-jit")) // Compile hot numeric lambdas to bytecode.
+				eval.jit = true;
+			else if(arg.equals("-cek")) // Run programs on the CEK machine.
+				machine = new CEKMachine(eval);
+			else if(arg.equals("-vm")) // Run programs on the register VM.
+				vm = new RegisterVM(eval);
+			else if(arg.equals("-disasm")) // With -vm, show the code of hot functions.
+				disassemble = true;
+			else if(arg.equals("-folds")) // Show what the optimizer folded.
+				folds = true;
+			else if(arg.startsWith("-heap=")) // Heap capacity in cells, e.g. -heap=100000000
+				heapSize = Integer.parseInt(arg.substring("-heap=".length()));
+			else if(arg.startsWith("-page=")) // Cells per heap page.
+				pageSize = Integer.parseInt(arg.substring("-page=".length()));
+			else if(arg.equals("-gc")) // Collect unreachable refs instead of running out of memory.
+				gc = true;
+			else if(arg.equals("-gc=gen")) // Same, with a generational copying heap.
+				gc = generational = true;
+			else if(arg.startsWith("-nursery=")) // Cells in the young generation, with -gc=gen.
+				nursery = Integer.parseInt(arg.substring("-nursery=".length()));
+		if(generational)
+			eval.heap = new GenerationalHeap(heapSize, nursery);
+		else
+			eval.heap = new PagedHeap(heapSize, pageSize);
+		if(gc && (compiler != null || machine != null || vm != null))
+			System.out.println("Note: -gc only works with the tree-walking evaluator; refs will not be collected.");
+		else
+			eval.collect(gc);
 		Printer printer = new Printer();
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
 				if(p._e == null) continue REPL;
-				Value val = eval.valueOf(p);
+				Value val;
+				if(compiler != null)
+					val = compiler.valueOf(p);
+				else if(machine != null)
+					val = machine.valueOf(p);
+				else if(vm != null)
+					val = vm.valueOf(p);
+				else
+					val = eval.valueOf(p);
 				printer.print(val);
+				if(folds)
+					for(String fold : reader.folds())
+						System.out.println("folded " + fold);
+				reader.folds().clear();
+				if(eval.gc != null) {
+					for(String line : eval.gc.log())
+						System.out.println(line);
+					eval.gc.log().clear();
+				}
+				if(vm != null && disassemble)
+					for(Chunk chunk : vm.hot(1000))
+						System.out.print(new Disassembler().disassemble(chunk));
 			} catch (Env.LookupException e) {
 				printer.print(e);
 			} catch (IOException e) {
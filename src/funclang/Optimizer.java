@@ -0,0 +1,578 @@
+package funclang;
+import static funclang.AST.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Constant folding and algebraic simplification. Rewrites a freshly parsed
+ * program bottom-up: arithmetic on literals, comparisons of literals and ifs
+ * with a literal condition are replaced by their value, and operands that
+ * cannot change a result, such as a 0 added or a 1 multiplied, are dropped.
+ *
+ * A rewrite is only made if the new expression gives the same value, the
+ * same error and the same effects as the old one. Operands are combined left
+ * to right like the Evaluator does, so the literals leading (- 10 2 x) are
+ * folded but those of (+ x 1 2) are not, as adding them first could round
+ * differently. An operand that could be something other than a number keeps
+ * its arithmetic around it, since that is what reports the error.
+ *
+ * Let bindings are inlined and removed as well. A binding of a literal or of
+ * another local variable is replaced by its value wherever it is used, a
+ * lambda used once or only ever called is copied to its uses, and a binding
+ * that is never used is dropped if evaluating its value has no effect.
+ * Immediately applied lambdas become lets, which are then simplified the same
+ * way. Copying a lambda to more than one use grows the code, so the copies
+ * made for a program may together add at most INLINE_LIMIT characters of
+ * printed code.
+ *
+ * A binding is left alone if the program could look it up by name rather
+ * than through a variable: an eval below it reads its scope, and a lambda
+ * called without its last actual looks that formal up in the scope it was
+ * created in.
+ *
+ * Each rewrite is added to a report, e.g. "(+ 1 2 (* 3 4)) => 15".
+ *
+ * Visiting a Program optimizes it like optimize(Program); every other node
+ * becomes an Exp.
+ */
+public class Optimizer implements Visitor<ASTNode> {
+
+	/** Characters of code that copying lambdas may add to one program. */
+	static final int INLINE_LIMIT = 256;
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	private List<String> _report = new ArrayList<String>();
+
+	private List<Binder> _bound = new ArrayList<Binder>(); // innermost last
+	private List<Free> _collecting = new ArrayList<Free>();
+	private int _lambdas = 0;
+	private int _budget;
+
+	public Program optimize(Program p) {
+		_budget = INLINE_LIMIT;
+		List<DefineDecl> decls = new ArrayList<DefineDecl>();
+		for(DefineDecl d : p.decls())
+			decls.add((DefineDecl) d.accept(this, null));
+		return new Program(decls, p.e() == null ? null : optimize(p.e()));
+	}
+
+	/** Rewrites made since the report was last cleared. */
+	public List<String> report() {
+		return _report;
+	}
+
+	private Exp optimize(Exp e) {
+		return (Exp) e.accept(this, null);
+	}
+
+	private List<Exp> optimizeAll(List<Exp> exps) {
+		List<Exp> result = new ArrayList<Exp>(exps.size());
+		for(Exp exp : exps)
+			result.add(optimize(exp));
+		return result;
+	}
+
+	private Exp folded(Exp before, Exp after) {
+		_report.add(before.accept(ts, null) + " => " + after.accept(ts, null));
+		return after;
+	}
+
+	private static boolean numeric(Exp e) {
+		return e instanceof NumExp || e instanceof CompoundArithExp;
+	}
+
+	private static boolean literal(Exp e) {
+		return e instanceof NumExp || e instanceof StrExp || e instanceof BoolExp;
+	}
+
+	/**
+	 * Simplifies an arithmetic expression. Add and multiply start from their
+	 * identity, subtract and divide from their first operand; the literals
+	 * that follow the start are folded into it, and identities further on are
+	 * dropped.
+	 */
+	private Exp arith(CompoundArithExp e, double identity, boolean fromIdentity,
+			DoubleBinaryOperator op, Function<List<Exp>, Exp> make) {
+		List<Exp> operands = optimizeAll(e.all());
+		if(!fromIdentity && operands.isEmpty())
+			return make.apply(operands);
+		List<Exp> result = new ArrayList<Exp>(operands.size());
+		int next = 0;
+		if(fromIdentity || operands.get(0) instanceof NumExp) {
+			double acc = fromIdentity ? identity : ((NumExp) operands.get(next++)).v();
+			while(next < operands.size() && operands.get(next) instanceof NumExp)
+				acc = op.applyAsDouble(acc, ((NumExp) operands.get(next++)).v());
+			if(next == operands.size())
+				return folded(e, new NumExp(acc));
+			if(!fromIdentity || acc != identity)
+				result.add(new NumExp(acc));
+		} else
+			result.add(operands.get(next++));
+		for(Exp operand : operands.subList(next, operands.size()))
+			if(!(operand instanceof NumExp && ((NumExp) operand).v() == identity))
+				result.add(operand);
+
+		if(same(result, operands))
+			return make.apply(operands);
+		// A lone operand known to be a number is its own value, except that
+		// adding it to 0 turns -0 into 0.
+		if(result.size() == 1 && numeric(result.get(0)) && (!fromIdentity || identity == 1))
+			return folded(e, result.get(0));
+		return folded(e, make.apply(result));
+	}
+
+	private static boolean same(List<Exp> result, List<Exp> operands) {
+		if(result.size() != operands.size())
+			return false;
+		for(int i = 0; i < result.size(); i++) {
+			Exp a = result.get(i), b = operands.get(i);
+			if(a != b && !(a instanceof NumExp && b instanceof NumExp
+					&& Double.compare(((NumExp) a).v(), ((NumExp) b).v()) == 0))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Exp visit(AddExp e, Env env) {
+		return arith(e, 0, true, (a, b) -> a + b, AddExp::new);
+	}
+
+	@Override
+	public Exp visit(UnitExp e, Env env) {
+		return e;
+	}
+
+	@Override
+	public Exp visit(NumExp e, Env env) {
+		return e;
+	}
+
+	@Override
+	public Exp visit(StrExp e, Env env) {
+		return e;
+	}
+
+	@Override
+	public Exp visit(BoolExp e, Env env) {
+		return e;
+	}
+
+	@Override
+	public Exp visit(DivExp e, Env env) {
+		return arith(e, 1, false, (a, b) -> a / b, DivExp::new);
+	}
+
+	@Override
+	public Exp visit(MultExp e, Env env) {
+		return arith(e, 1, true, (a, b) -> a * b, MultExp::new);
+	}
+
+	@Override
+	public Program visit(Program p, Env env) {
+		return optimize(p);
+	}
+
+	@Override
+	public Exp visit(SubExp e, Env env) {
+		return arith(e, 0, false, (a, b) -> a - b, SubExp::new);
+	}
+
+	@Override
+	public Exp visit(VarExp e, Env env) {
+		Binder b = binder(e.name());
+		if(b != null && b._replacement != null)
+			return optimize(b._replacement);
+		if(b != null)
+			b.use(this);
+		int index = _bound.lastIndexOf(b);
+		for(Free free : _collecting)
+			if(index < free._base)
+				free._names.add(e.name());
+		// A fresh node, as copies of a lambda must not share resolved variables.
+		return new VarExp(e.name());
+	}
+
+	@Override
+	public Exp visit(LetExp e, Env env) {
+		List<Uses> before = uses();
+		int base = _bound.size();
+		List<Binder> binders = new ArrayList<Binder>();
+		for(int i = 0; i < e.names().size(); i++) {
+			Free free = new Free(base);
+			_collecting.add(free);
+			Exp value = optimize(e.value_exps().get(i));
+			_collecting.remove(free);
+			if(value instanceof VarExp) {
+				Binder b = binder(((VarExp) value).name());
+				free._local = b != null && !b._last;
+			}
+			binders.add(new Binder(e.names().get(i), base, _lambdas, value, free));
+		}
+		Exp body = scoped(binders, e.body());
+		if(new HashSet<String>(e.names()).size() < e.names().size() || !decide(binders))
+			return new LetExp(e.names(), values(binders), body);
+
+		// Count the uses again, now in the simplified body.
+		restore(before);
+		List<String> names = new ArrayList<String>();
+		List<Exp> values = new ArrayList<Exp>();
+		for(Binder b : binders)
+			if(b._keep) {
+				names.add(b._name);
+				values.add(optimize(b._value));
+			}
+		body = scoped(binders, body);
+		return folded(e, names.isEmpty() ? body : new LetExp(names, values, body));
+	}
+
+	private static List<Exp> values(List<Binder> binders) {
+		List<Exp> values = new ArrayList<Exp>();
+		for(Binder b : binders)
+			values.add(b._value);
+		return values;
+	}
+
+	/**
+	 * Decides which let bindings to replace by their value and which to drop;
+	 * false if all of them stay as they are.
+	 */
+	private boolean decide(List<Binder> binders) {
+		boolean changed = false;
+		for(Binder b : binders) {
+			Uses u = b._uses;
+			Exp value = b._value;
+			if(u._byName || b._free._eval)
+				continue;
+			if(u._count == 0 && pure(b))
+				b._keep = false;
+			else if(literal(value) || value instanceof VarExp && pure(b) && !u._captured)
+				b._replacement = value;
+			else if(value instanceof LambdaExp && !u._captured) {
+				if(u._count == 1 && !u._inLambda)
+					b._replacement = value;
+				else if(u._calls == u._count && ((LambdaExp) value).defParam() == null) {
+					int growth = size(value) * (u._count - 1);
+					if(growth <= _budget) {
+						_budget -= growth;
+						b._replacement = value;
+					}
+				}
+			}
+			if(b._replacement != null)
+				b._keep = false;
+			changed |= !b._keep;
+		}
+		return changed;
+	}
+
+	/** Whether a let binding can be evaluated without effects or errors. */
+	private static boolean pure(Binder b) {
+		Exp value = b._value;
+		return literal(value) || value instanceof UnitExp || value instanceof LambdaExp
+				|| value instanceof VarExp && b._free._local;
+	}
+
+	private int size(Exp e) {
+		return ((String) e.accept(ts, null)).length();
+	}
+
+	private Exp scoped(List<Binder> binders, Exp body) {
+		_bound.addAll(binders);
+		Exp result = optimize(body);
+		_bound.subList(_bound.size() - binders.size(), _bound.size()).clear();
+		return result;
+	}
+
+	/** The innermost binder of a name, or null if it is global. */
+	private Binder binder(String name) {
+		for(int i = _bound.size() - 1; i >= 0; i--)
+			if(_bound.get(i)._name.equals(name))
+				return _bound.get(i);
+		return null;
+	}
+
+	private List<Uses> uses() {
+		List<Uses> uses = new ArrayList<Uses>();
+		for(Binder b : _bound)
+			uses.add(new Uses(b._uses));
+		return uses;
+	}
+
+	private void restore(List<Uses> uses) {
+		for(int i = 0; i < uses.size(); i++)
+			_bound.get(i)._uses = uses.get(i);
+	}
+
+	@Override
+	public Exp visit(DefineDecl d, Env env) {
+		return new DefineDecl(d.name(), optimize(d.value_exp()));
+	}
+
+	@Override
+	public Exp visit(ReadExp e, Env env) {
+		return new ReadExp(optimize(e.file()));
+	}
+
+	@Override
+	public Exp visit(EvalExp e, Env env) {
+		for(Binder b : _bound)
+			b._uses._byName = true;
+		for(Free free : _collecting)
+			free._eval = true;
+		return new EvalExp(optimize(e.code()));
+	}
+
+	@Override
+	public Exp visit(LambdaExp e, Env env) {
+		List<String> formals = e.formals();
+		List<Binder> binders = new ArrayList<Binder>();
+		if(!formals.isEmpty()) {
+			String last = formals.get(formals.size() - 1);
+			Binder b = binder(last);
+			if(b != null)
+				b._uses._byName = true;
+			for(Free free : _collecting)
+				free._names.add(last);
+			for(String formal : formals)
+				binders.add(new Binder(formal, _bound.size(), _lambdas + 1, null, null));
+			binders.get(binders.size() - 1)._last = true;
+		}
+		_lambdas++;
+		Exp body = scoped(binders, e.body());
+		_lambdas--;
+		return new LambdaExp(formals, body, e.defParam());
+	}
+
+	@Override
+	public Exp visit(CallExp e, Env env) {
+		Exp operator = e.operator();
+		List<Exp> operands = e.operands();
+		if(operator instanceof VarExp) {
+			Binder b = binder(((VarExp) operator).name());
+			if(b != null && b._replacement != null)
+				operator = b._replacement;
+			else if(b != null && b._value instanceof LambdaExp
+					&& ((LambdaExp) b._value).formals().size() == operands.size())
+				b._uses._calls++;
+		}
+		if(operator instanceof LambdaExp) {
+			LambdaExp lambda = (LambdaExp) operator;
+			if(lambda.defParam() == null && lambda.formals().size() == operands.size())
+				return folded(e, optimize(new LetExp(lambda.formals(), operands, lambda.body())));
+		}
+		return new CallExp(optimize(e.operator()), optimizeAll(operands));
+	}
+
+	@Override
+	public Exp visit(IfExp e, Env env) {
+		Exp conditional = optimize(e.conditional());
+		if(conditional instanceof BoolExp)
+			return folded(e, optimize(((BoolExp) conditional).v() ? e.then_exp() : e.else_exp()));
+		return new IfExp(conditional, optimize(e.then_exp()), optimize(e.else_exp()));
+	}
+
+	@Override
+	public Exp visit(LessExp e, Env env) {
+		Exp first = optimize(e.first_exp()), second = optimize(e.second_exp());
+		if(first instanceof NumExp && second instanceof NumExp)
+			return folded(e, new BoolExp(((NumExp) first).v() < ((NumExp) second).v()));
+		return new LessExp(first, second);
+	}
+
+	@Override
+	public Exp visit(EqualExp e, Env env) {
+		Exp first = optimize(e.first_exp()), second = optimize(e.second_exp());
+		if(literal(first) && literal(second))
+			return folded(e, new BoolExp(Evaluator.compareValues(value(first), value(second))));
+		return new EqualExp(first, second);
+	}
+
+	private static Value value(Exp literal) {
+		if(literal instanceof NumExp)
+			return new Value.NumVal(((NumExp) literal).v());
+		if(literal instanceof StrExp)
+			return new Value.StringVal(((StrExp) literal).v());
+		return new Value.BoolVal(((BoolExp) literal).v());
+	}
+
+	@Override
+	public Exp visit(GreaterExp e, Env env) {
+		Exp first = optimize(e.first_exp()), second = optimize(e.second_exp());
+		if(first instanceof NumExp && second instanceof NumExp)
+			return folded(e, new BoolExp(((NumExp) first).v() > ((NumExp) second).v()));
+		return new GreaterExp(first, second);
+	}
+
+	@Override
+	public Exp visit(CarExp e, Env env) {
+		return new CarExp(optimize(e.arg()));
+	}
+
+	@Override
+	public Exp visit(CdrExp e, Env env) {
+		return new CdrExp(optimize(e.arg()));
+	}
+
+	@Override
+	public Exp visit(ConsExp e, Env env) {
+		return new ConsExp(optimize(e.fst()), optimize(e.snd()));
+	}
+
+	@Override
+	public Exp visit(ListExp e, Env env) {
+		return new ListExp(optimizeAll(e.elems()));
+	}
+
+	@Override
+	public Exp visit(NullExp e, Env env) {
+		return new NullExp(optimize(e.arg()));
+	}
+
+	@Override
+	public Exp visit(NumPredExp e, Env env) {
+		return new NumPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(BoolPredExp e, Env env) {
+		return new BoolPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(StrPredExp e, Env env) {
+		return new StrPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(ProcPredExp e, Env env) {
+		return new ProcPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(PairPredExp e, Env env) {
+		return new PairPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(ListPredExp e, Env env) {
+		return new ListPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(UnitPredExp e, Env env) {
+		return new UnitPredExp(optimize(e.exp()));
+	}
+
+	@Override
+	public Exp visit(RefExp e, Env env) {
+		return new RefExp(optimize(e.val_exp()));
+	}
+
+	@Override
+	public Exp visit(DerefExp e, Env env) {
+		return new DerefExp(optimize(e.loc_exp()));
+	}
+
+	@Override
+	public Exp visit(SetrefExp e, Env env) {
+		return new SetrefExp(optimize(e.loc_exp()), optimize(e.val_exp()));
+	}
+
+	@Override
+	public Exp visit(FreeExp e, Env env) {
+		return new FreeExp(optimize(e.loc_exp()));
+	}
+
+	@Override
+	public Exp visit(ArrayExp e, Env env) {
+		return new ArrayExp(optimizeAll(e.dims()));
+	}
+
+	@Override
+	public Exp visit(IndexExp e, Env env) {
+		return new IndexExp(optimize(e.arr()), optimizeAll(e.idxs()));
+	}
+
+	@Override
+	public Exp visit(ArrAssignExp e, Env env) {
+		return new ArrAssignExp(optimize(e.arr()), optimizeAll(e.idxs()), optimize(e.val()));
+	}
+
+	@Override
+	public Exp visit(ArrayOpExp e, Env env) {
+		return new ArrayOpExp(e.op(), optimizeAll(e.args()));
+	}
+
+	/** What is known of the uses of a let binding in its body. */
+	private static class Uses {
+		int _count;
+		int _calls; // uses as the operator of a call that passes every formal
+		boolean _inLambda;
+		boolean _captured; // a use sees another binding of a name the value needs
+		boolean _byName;
+
+		Uses() {
+		}
+
+		Uses(Uses u) {
+			_count = u._count;
+			_calls = u._calls;
+			_inLambda = u._inLambda;
+			_captured = u._captured;
+			_byName = u._byName;
+		}
+	}
+
+	/** A name bound by an enclosing let or lambda. */
+	private static class Binder {
+		String _name;
+		int _base; // position of the first name of the same let or lambda
+		int _depth; // lambdas around the binding
+		boolean _last; // the last formal of a lambda, which may be missing
+
+		// Let bindings only.
+		Exp _value;
+		Free _free;
+		Uses _uses = new Uses();
+		boolean _keep = true;
+		Exp _replacement;
+
+		Binder(String name, int base, int depth, Exp value, Free free) {
+			_name = name;
+			_base = base;
+			_depth = depth;
+			_value = value;
+			_free = free;
+		}
+
+		void use(Optimizer o) {
+			_uses._count++;
+			if(_free == null)
+				return;
+			if(o._lambdas > _depth)
+				_uses._inLambda = true;
+			for(String name : _free._names)
+				if(o._bound.lastIndexOf(o.binder(name)) >= _base)
+					_uses._captured = true;
+		}
+	}
+
+	/** Names a let value depends on, collected while it is optimized. */
+	private static class Free {
+		int _base;
+		Set<String> _names = new HashSet<String>();
+		boolean _eval;
+		boolean _local; // the value is a variable that is always bound
+
+		Free(int base) {
+			_base = base;
+		}
+	}
+}
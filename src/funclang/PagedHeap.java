@@ -0,0 +1,201 @@
+package funclang;
+
+import funclang.Value.*;
+
+/**
+ * A heap of slots held in fixed-size pages. A page is allocated when the
+ * first of its slots is, so a program that makes few refs uses one small page
+ * however large the capacity. Page sizes are powers of two, which makes
+ * finding a slot a shift and a mask.
+ *
+ * Freed slots go on a free list and are handed out again by ref, so only the
+ * number of live refs is limited. Every slot has a generation that is bumped
+ * when the slot is freed, and a RefVal carries the generation of its slot at
+ * the time of ref. A RefVal whose generation no longer matches refers to a
+ * freed slot, possibly since reused, and using it is an error rather than a
+ * read of someone else's value.
+ *
+ * A heap can also be given a GarbageCollector, which ref then runs once the
+ * live refs reach a threshold. The threshold starts at MIN_THRESHOLD and
+ * after each collection is set to twice what survived, so collections get
+ * rarer as the live data grows. Generations are even for live slots and odd
+ * for free ones, which lets the sweep tell them apart.
+ */
+class PagedHeap implements Heap{
+
+    static final int DEFAULT_CAPACITY = 1 << 24;
+    static final int DEFAULT_PAGE_SIZE = 4096;
+    static final int MIN_THRESHOLD = 1024;
+
+    private static class Page {
+        final Value[] rep;
+        final int[] generation;
+        final int[] nextFree;
+        boolean[] marked; // only during a collection
+        Page(int size){
+            rep = new Value[size];
+            generation = new int[size];
+            nextFree = new int[size];
+        }
+    }
+
+    private final int _capacity;
+    private final int _shift;
+    private final int _mask;
+    private final Page[] _pages;
+    private int _free = -1; // the most recently freed slot, or -1
+    private int _live = 0;
+    private int _threshold;
+    private GarbageCollector _collector;
+
+    int index = 0; // slots from here on have never been used
+
+    PagedHeap(){
+        this(DEFAULT_CAPACITY, DEFAULT_PAGE_SIZE);
+    }
+
+    /** A heap of up to capacity slots; the page size is rounded up to a power of two. */
+    PagedHeap(int capacity, int pageSize){
+        if(capacity <= 0 || pageSize <= 0 || pageSize > (1 << 30))
+            throw new IllegalArgumentException("Bad heap capacity " + capacity + " or page size " + pageSize);
+        _shift = 32 - Integer.numberOfLeadingZeros(pageSize - 1);
+        _mask = (1 << _shift) - 1;
+        _capacity = capacity;
+        _pages = new Page[(int) (((long) capacity + _mask) >> _shift)];
+        _threshold = Math.min(capacity, MIN_THRESHOLD);
+    }
+
+    public int capacity(){
+        return _capacity;
+    }
+
+    public int pageSize(){
+        return _mask + 1;
+    }
+
+    /** Pages allocated so far. */
+    public int pages(){
+        int pages = 0;
+        for(Page page : _pages)
+            if(page != null)
+                pages++;
+        return pages;
+    }
+
+    /** Refs made and not yet freed or collected. */
+    public int live(){
+        return _live;
+    }
+
+    /** Collect with the given collector from now on, or never if null. */
+    public void setCollector(GarbageCollector collector){
+        _collector = collector;
+    }
+
+    @Override
+    public Value ref(Value val) {
+        if(_collector != null && _live >= _threshold){
+            _collector.collect(this, val);
+            _threshold = Math.min(_capacity, Math.max(MIN_THRESHOLD, 2 * _live));
+        }
+        int slot;
+        Page page;
+        if(_free >= 0){
+            slot = _free;
+            page = _pages[slot >>> _shift];
+            _free = page.nextFree[slot & _mask];
+            page.generation[slot & _mask]++;
+        } else if(index < _capacity){
+            slot = index++;
+            page = _pages[slot >>> _shift];
+            if(page == null)
+                page = _pages[slot >>> _shift] = new Page(_mask + 1);
+        } else {
+            return new DynamicError("<Error: Out of memory>");
+        }
+        page.rep[slot & _mask] = val;
+        _live++;
+        return new RefVal(slot, page.generation[slot & _mask]);
+    }
+
+    @Override
+    public Value deref(RefVal loc) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        return _pages[loc.loc() >>> _shift].rep[loc.loc() & _mask];
+    }
+
+    @Override
+    public Value setref(RefVal loc, Value val) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        return _pages[loc.loc() >>> _shift].rep[loc.loc() & _mask] = val;
+    }
+
+    @Override
+    public Value free(RefVal loc) {
+        Value error = check(loc);
+        if(error != null)
+            return error;
+        release(loc.loc());
+        return loc;
+    }
+
+    private void release(int slot) {
+        Page page = _pages[slot >>> _shift];
+        page.rep[slot & _mask] = null;
+        page.generation[slot & _mask]++;
+        page.nextFree[slot & _mask] = _free;
+        _free = slot;
+        _live--;
+    }
+
+    /**
+     * Marks the slot of a ref as reachable. Returns what the slot holds the
+     * first time it is marked, and null if it was marked already or the ref
+     * is dangling.
+     */
+    Value mark(RefVal loc) {
+        int slot = loc.loc();
+        if(slot < 0 || slot >= index)
+            return null;
+        Page page = _pages[slot >>> _shift];
+        if(page.generation[slot & _mask] != loc.generation())
+            return null;
+        if(page.marked == null)
+            page.marked = new boolean[_mask + 1];
+        else if(page.marked[slot & _mask])
+            return null;
+        page.marked[slot & _mask] = true;
+        return page.rep[slot & _mask];
+    }
+
+    /** Frees every live slot that was not marked and clears the marks; returns the number freed. */
+    int sweep() {
+        int freed = 0;
+        for(int slot = 0; slot < index; slot++){
+            Page page = _pages[slot >>> _shift];
+            int i = slot & _mask;
+            if((page.generation[i] & 1) == 0 && (page.marked == null || !page.marked[i])){
+                release(slot);
+                freed++;
+            }
+        }
+        for(Page page : _pages)
+            if(page != null)
+                page.marked = null;
+        return freed;
+    }
+
+    /** The error for a ref that is not to a live slot, or null if it is. */
+    private Value check(RefVal loc) {
+        int slot = loc.loc();
+        if(slot < 0 || slot >= index)
+            return new DynamicError("<Error: Segmentation Fault at location: " +loc +">");
+        if(_pages[slot >>> _shift].generation[slot & _mask] != loc.generation())
+            return new DynamicError("<Error: Dangling reference to location: " +slot +">");
+        return null;
+    }
+}
@@ -294,6 +294,14 @@ public class Printer {
 			output += e.val().accept(this , env);
 			return output + ")";
 		}
+		@Override
+		public String visit(AST.ArrayOpExp e, Env env) {
+			String output = "(" + e.name() + " ";
+			for(Exp exp: e.args()){
+				output += exp.accept(this , env) + " ";
+			}
+			return output + ")";
+		}
 	}
 
 }
@@ -4,12 +4,15 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.FileReader;
+import java.util.List;
 
 import funclang.AST.Program;
 import funclang.parser.FuncLangLexer;
 import funclang.parser.FuncLangParser;
 
 public class Reader {
+
+	Optimizer _optimizer = new Optimizer();
 	
 	Program read() throws IOException {
 		String programText = readNextProgram();
@@ -19,10 +22,15 @@ public class Reader {
 	Program parse(String programText) {
 		FuncLangLexer l = new FuncLangLexer(new org.antlr.v4.runtime.ANTLRInputStream(programText));
 		FuncLangParser p = new FuncLangParser(new org.antlr.v4.runtime.CommonTokenStream(l));
-		Program program = p.program().ast;
-		return program;
+		Program program = _optimizer.optimize(p.program().ast);
+		return new Resolver().resolve(program);
 	}
 	
+	/** What the optimizer folded in the programs parsed since the report was last cleared. */
+	List<String> folds() {
+		return _optimizer.report();
+	}
+
 	static String readFile(String fileName) throws IOException {
 		try (BufferedReader br = new BufferedReader(
 				new FileReader(fileName))) {
@@ -0,0 +1,557 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Chunk.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.Value.*;
+
+/**
+ * Compiles a program to Chunks for the RegisterVM.
+ *
+ * Every expression is compiled into a destination register. Formals and let
+ * variables live in registers of their function's frame for as long as they
+ * are in scope; temporaries are allocated above them and released as soon as
+ * the enclosing expression is done. Variables are never assigned, so a lambda
+ * captures the values of its free variables when its closure is created.
+ *
+ * Operands are evaluated in the same order as the Evaluator evaluates them,
+ * and a number or reference check that the Evaluator makes before evaluating
+ * the next operand is made at the same point, so type errors come out the same.
+ */
+public class RegisterCompiler implements Visitor<Void> {
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	/** Compile-time state of one function. */
+	static class Scope {
+		private Scope _parent;
+		private Chunk _chunk = new Chunk();
+		private List<String> _names = new ArrayList<String>(); // variables in scope
+		private List<Integer> _regs = new ArrayList<Integer>(); // and their registers
+		private List<String> _captured = new ArrayList<String>();
+		private int _top = 0; // next free register
+		private int[] _code = new int[32];
+		private int _pc = 0;
+		private List<Value> _constants = new ArrayList<Value>();
+		private Map<Object, Integer> _constantIndex = new HashMap<Object, Integer>();
+		private List<String> _globals = new ArrayList<String>();
+		private List<Chunk> _functions = new ArrayList<Chunk>();
+		private List<Exp> _nodes = new ArrayList<Exp>();
+		Scope(Scope parent) {
+			_parent = parent;
+		}
+	}
+
+	private Scope _scope;
+	private int _dst;
+
+	/** Compiles a program to a chunk without formals. */
+	public Chunk compile(Program p) {
+		_scope = new Scope(null);
+		p.accept(this, null);
+		return finish("program");
+	}
+
+	private Chunk finish(String name) {
+		Scope s = _scope;
+		Chunk chunk = s._chunk;
+		chunk._name = name;
+		chunk._code = java.util.Arrays.copyOf(s._code, s._pc);
+		chunk._constants = s._constants.toArray(new Value[0]);
+		chunk._names = s._globals.toArray(new String[0]);
+		chunk._cells = new Env.Cell[chunk._names.length];
+		chunk._functions = s._functions.toArray(new Chunk[0]);
+		chunk._nodes = s._nodes.toArray(new Exp[0]);
+		chunk._captured = s._captured.toArray(new String[0]);
+		return chunk;
+	}
+
+	// Code emission.
+
+	private void emit(int... words) {
+		Scope s = _scope;
+		if(s._pc + words.length > s._code.length)
+			s._code = java.util.Arrays.copyOf(s._code, 2 * (s._pc + words.length));
+		for(int word : words)
+			s._code[s._pc++] = word;
+	}
+
+	private int pc() {
+		return _scope._pc;
+	}
+
+	/** Points the jump operand at the given position to the current pc. */
+	private void patch(int at) {
+		_scope._code[at] = _scope._pc;
+	}
+
+	private int alloc() {
+		Scope s = _scope;
+		int reg = s._top++;
+		if(s._top > s._chunk._registers)
+			s._chunk._registers = s._top;
+		return reg;
+	}
+
+	private int constant(Object key, Value val) {
+		Scope s = _scope;
+		Integer index = s._constantIndex.get(key);
+		if(index == null) {
+			index = s._constants.size();
+			s._constants.add(val);
+			s._constantIndex.put(key, index);
+		}
+		return index;
+	}
+
+	private int global(String name) {
+		int index = _scope._globals.indexOf(name);
+		if(index < 0) {
+			index = _scope._globals.size();
+			_scope._globals.add(name);
+		}
+		return index;
+	}
+
+	private int node(Exp e) {
+		_scope._nodes.add(e);
+		return _scope._nodes.size() - 1;
+	}
+
+	// Variables.
+
+	private static int local(Scope s, String name) {
+		int index = s._names.lastIndexOf(name);
+		return index < 0 ? -1 : s._regs.get(index);
+	}
+
+	/** Index of a variable captured by the given function, or -1 if it is global. */
+	private static int capture(Scope s, String name) {
+		int index = s._captured.indexOf(name);
+		if(index >= 0)
+			return index;
+		Scope outer = s._parent;
+		if(outer == null || (local(outer, name) < 0 && capture(outer, name) < 0))
+			return -1;
+		s._captured.add(name);
+		return s._captured.size() - 1;
+	}
+
+	// Expressions.
+
+	private void compile(Exp e, int dst) {
+		_dst = dst;
+		e.accept(this, null);
+	}
+
+	/** A register holding the value of e: its own register for a local variable, else a new temporary. */
+	private int operand(Exp e) {
+		if(e instanceof VarExp) {
+			int reg = local(_scope, ((VarExp) e).name());
+			if(reg >= 0)
+				return reg;
+		}
+		int reg = alloc();
+		compile(e, reg);
+		return reg;
+	}
+
+	/** True if evaluating e can neither fail nor have an effect. */
+	private boolean simple(Exp e) {
+		if(e instanceof VarExp)
+			return local(_scope, ((VarExp) e).name()) >= 0;
+		return e instanceof NumExp || e instanceof StrExp || e instanceof BoolExp || e instanceof UnitExp;
+	}
+
+	private int[] operands(List<Exp> exps) {
+		int[] regs = new int[exps.size()];
+		for(int i = 0; i < regs.length; i++)
+			regs[i] = operand(exps.get(i));
+		return regs;
+	}
+
+	private void emitList(int[] fixed, int[] regs) {
+		int[] words = java.util.Arrays.copyOf(fixed, fixed.length + 1 + regs.length);
+		words[fixed.length] = regs.length;
+		System.arraycopy(regs, 0, words, fixed.length + 1, regs.length);
+		emit(words);
+	}
+
+	private void arith(int op, boolean identity, List<Exp> operands) {
+		int dst = _dst, top = _scope._top;
+		if(operands.isEmpty()) {
+			emit(CONST, dst, constant(identity ? 1.0 : 0.0, new NumVal(identity ? 1 : 0)));
+			return;
+		}
+		int first = operand(operands.get(0));
+		if(operands.size() == 1 || !simple(operands.get(1)))
+			emit(CAST, first, 2);
+		if(operands.size() == 1) {
+			emit(MOVE, dst, first);
+			_scope._top = top;
+			return;
+		}
+		int acc = first;
+		for(int i = 1; i < operands.size(); i++) {
+			int reg = operand(operands.get(i));
+			emit(op, dst, acc, reg);
+			acc = dst;
+			_scope._top = top;
+		}
+	}
+
+	private void unary(int op, Exp arg) {
+		int dst = _dst, top = _scope._top;
+		emit(op, dst, operand(arg));
+		_scope._top = top;
+	}
+
+	private void binary(int op, Exp first, Exp second, int check) {
+		int dst = _dst, top = _scope._top;
+		int a = operand(first);
+		if(check >= 0 && !simple(second))
+			emit(CAST, a, check);
+		int b = operand(second);
+		emit(op, dst, a, b);
+		_scope._top = top;
+	}
+
+	@Override
+	public Void visit(AddExp e, Env env) {
+		arith(ADD, false, e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(UnitExp e, Env env) {
+		emit(UNIT, _dst);
+		return null;
+	}
+
+	@Override
+	public Void visit(NumExp e, Env env) {
+		emit(CONST, _dst, constant(e.v(), new NumVal(e.v())));
+		return null;
+	}
+
+	@Override
+	public Void visit(StrExp e, Env env) {
+		emit(CONST, _dst, constant(e.v(), new StringVal(e.v())));
+		return null;
+	}
+
+	@Override
+	public Void visit(BoolExp e, Env env) {
+		emit(BOOL, _dst, e.v() ? 1 : 0);
+		return null;
+	}
+
+	@Override
+	public Void visit(DivExp e, Env env) {
+		arith(DIV, false, e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(MultExp e, Env env) {
+		arith(MUL, true, e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(Program p, Env env) {
+		int dst = alloc();
+		for(DefineDecl d: p.decls())
+			compile(d, dst);
+		compile(p.e(), dst);
+		emit(RETURN, dst);
+		return null;
+	}
+
+	@Override
+	public Void visit(SubExp e, Env env) {
+		arith(SUB, false, e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(VarExp e, Env env) {
+		int reg = local(_scope, e.name());
+		if(reg >= 0) {
+			emit(MOVE, _dst, reg);
+			return null;
+		}
+		int index = capture(_scope, e.name());
+		if(index >= 0)
+			emit(CAPTURED, _dst, index);
+		else
+			emit(GLOBAL, _dst, global(e.name()));
+		return null;
+	}
+
+	@Override
+	public Void visit(LetExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		List<Exp> value_exps = e.value_exps();
+		int[] regs = new int[value_exps.size()];
+		for(int i = 0; i < regs.length; i++) {
+			regs[i] = alloc();
+			compile(value_exps.get(i), regs[i]);
+		}
+		int scope = _scope._names.size();
+		for(int i = 0; i < regs.length; i++) {
+			_scope._names.add(e.names().get(i));
+			_scope._regs.add(regs[i]);
+		}
+		compile(e.body(), dst);
+		_scope._names.subList(scope, _scope._names.size()).clear();
+		_scope._regs.subList(scope, _scope._regs.size()).clear();
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(DefineDecl d, Env env) {
+		int dst = _dst, top = _scope._top;
+		int val = alloc();
+		compile(d.value_exp(), val);
+		emit(DEFINE, dst, global(d.name()), val);
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(ReadExp e, Env env) {
+		unary(READ, e.file());
+		return null;
+	}
+
+	@Override
+	public Void visit(EvalExp e, Env env) {
+		unary(EVAL, e.code());
+		return null;
+	}
+
+	@Override
+	public Void visit(LambdaExp e, Env env) {
+		int dst = _dst;
+		Scope outer = _scope;
+		_scope = new Scope(outer);
+		List<String> formals = e.formals();
+		for(String formal : formals) {
+			_scope._names.add(formal);
+			_scope._regs.add(alloc());
+		}
+		int body = alloc();
+		compile(e.body(), body);
+		emit(RETURN, body);
+		// A call that leaves out the last actual finds it where the Evaluator
+		// would: in the default parameter, else in the enclosing scope.
+		if(e.defParam() == null && !formals.isEmpty())
+			_scope._chunk._fallback = capture(_scope, formals.get(formals.size() - 1));
+		Chunk chunk = finish(ts.visit(e, env));
+		chunk._lambda = e;
+		chunk._arity = formals.size();
+		if(e.defParam() != null)
+			chunk._default = new NumVal(e.defParam().v());
+		_scope = outer;
+
+		int top = _scope._top;
+		int[] regs = new int[chunk._captured.length];
+		for(int i = 0; i < regs.length; i++)
+			regs[i] = operand(new VarExp(chunk._captured[i]));
+		_scope._functions.add(chunk);
+		emitList(new int[] { CLOSURE, dst, _scope._functions.size() - 1 }, regs);
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(CallExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		int x = node(e);
+		int operator = operand(e.operator());
+		emit(FUNCTION, dst, operator, x, 0);
+		int target = pc() - 1;
+		int[] regs = operands(e.operands());
+		emitList(new int[] { e.tail() ? TAILCALL : CALL, dst, operator, x }, regs);
+		patch(target);
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(IfExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		int cond = operand(e.conditional());
+		_scope._top = top;
+		emit(BRANCH, cond, 0, dst, node(e), 0);
+		int branch = pc() - 5;
+		compile(e.then_exp(), dst);
+		emit(JUMP, 0);
+		int jump = pc() - 1;
+		patch(branch + 1);
+		compile(e.else_exp(), dst);
+		patch(jump);
+		patch(branch + 4);
+		return null;
+	}
+
+	@Override
+	public Void visit(LessExp e, Env env) {
+		binary(LESS, e.first_exp(), e.second_exp(), 0);
+		return null;
+	}
+
+	@Override
+	public Void visit(EqualExp e, Env env) {
+		binary(EQUAL, e.first_exp(), e.second_exp(), -1);
+		return null;
+	}
+
+	@Override
+	public Void visit(GreaterExp e, Env env) {
+		binary(GREATER, e.first_exp(), e.second_exp(), 0);
+		return null;
+	}
+
+	@Override
+	public Void visit(CarExp e, Env env) {
+		unary(CAR, e.arg());
+		return null;
+	}
+
+	@Override
+	public Void visit(CdrExp e, Env env) {
+		unary(CDR, e.arg());
+		return null;
+	}
+
+	@Override
+	public Void visit(ConsExp e, Env env) {
+		binary(CONS, e.fst(), e.snd(), -1);
+		return null;
+	}
+
+	@Override
+	public Void visit(ListExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		emitList(new int[] { LIST, dst }, operands(e.elems()));
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(NullExp e, Env env) {
+		unary(ISNULL, e.arg());
+		return null;
+	}
+
+	@Override
+	public Void visit(NumPredExp e, Env env) {
+		unary(ISNUM, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(BoolPredExp e, Env env) {
+		unary(ISBOOL, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(StrPredExp e, Env env) {
+		unary(ISSTR, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(ProcPredExp e, Env env) {
+		unary(ISPROC, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(PairPredExp e, Env env) {
+		unary(ISPAIR, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(ListPredExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		emit(ISLIST, dst, operand(e.exp()), e.exp() instanceof ListExp ? 1 : 0);
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(UnitPredExp e, Env env) {
+		unary(ISUNIT, e.exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(RefExp e, Env env) {
+		unary(REF, e.val_exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(DerefExp e, Env env) {
+		unary(DEREF, e.loc_exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(SetrefExp e, Env env) {
+		binary(SETREF, e.loc_exp(), e.val_exp(), 1);
+		return null;
+	}
+
+	@Override
+	public Void visit(FreeExp e, Env env) {
+		unary(FREE, e.loc_exp());
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrayExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		emitList(new int[] { ARRAY, dst }, operands(e.dims()));
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(IndexExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		int arr = operand(e.arr());
+		emitList(new int[] { INDEX, dst, arr }, operands(e.idxs()));
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrAssignExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		int arr = operand(e.arr());
+		int[] idxs = operands(e.idxs());
+		int val = operand(e.val());
+		emitList(new int[] { ARRSET, dst, arr, val }, idxs);
+		_scope._top = top;
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrayOpExp e, Env env) {
+		int dst = _dst, top = _scope._top;
+		emitList(new int[] { ARRAYOP, dst, e.op() }, operands(e.args()));
+		_scope._top = top;
+		return null;
+	}
+}
@@ -0,0 +1,515 @@
+package funclang;
+import static funclang.Chunk.*;
+import static funclang.Value.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import funclang.AST.*;
+import funclang.Env.*;
+
+/**
+ * A register-based virtual machine for the Chunks built by the
+ * RegisterCompiler. Each call gets a frame with its own Value[] register
+ * file; frames are linked on the Java heap, so calls do not use the Java
+ * stack and a tail call simply replaces the current frame.
+ *
+ * The machine shares the heap, global environment and reader of an
+ * Evaluator, and calls functions that it did not create itself (such as the
+ * built-in read and require) through that Evaluator.
+ */
+public class RegisterVM {
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	private Evaluator _host;
+	private RegisterCompiler _compiler = new RegisterCompiler();
+	private List<Chunk> _chunks = new ArrayList<Chunk>(); // every function compiled so far
+
+	private static final BoolVal TRUE = new BoolVal(true);
+	private static final BoolVal FALSE = new BoolVal(false);
+	private static final UnitVal UNIT_VAL = new UnitVal();
+	private static final Value[] NOTHING = new Value[0];
+
+	public RegisterVM(Evaluator host) {
+		_host = host;
+	}
+
+	/** A function created by the machine: its code and the values it captured. */
+	static class Closure extends FunVal {
+		private Chunk _chunk;
+		private Value[] _captured;
+		private Env _globals;
+		private Env _env;
+		Closure(Chunk chunk, Value[] captured, Env globals) {
+			super(null, chunk._lambda);
+			_chunk = chunk;
+			_captured = captured;
+			_globals = globals;
+		}
+		Chunk chunk() { return _chunk; }
+		/** The captured values as an environment, for printing. */
+		@Override
+		public Env env() {
+			if(_env == null) {
+				Env env = new FrameEnv(_globals, Arrays.asList(_chunk._captured), _captured);
+				if(_chunk._default != null) {
+					List<String> formals = formals();
+					env = new FrameEnv(env, formals.subList(formals.size() - 1, formals.size()),
+							new Value[] { _chunk._default });
+				}
+				_env = env;
+			}
+			return _env;
+		}
+	}
+
+	/** An activation of a chunk. */
+	private static final class Frame {
+		Chunk _chunk;
+		Value[] _regs;
+		Value[] _captured;
+		int _pc;
+		int _ret; // register of the caller that receives the result
+		Frame _caller;
+		Frame(Chunk chunk, Value[] captured, Frame caller, int ret) {
+			_chunk = chunk;
+			_regs = new Value[chunk._registers];
+			_captured = captured;
+			_caller = caller;
+			_ret = ret;
+			chunk._calls++;
+		}
+	}
+
+	Value valueOf(Program p) {
+		return run(compile(p));
+	}
+
+	Chunk compile(Program p) {
+		Chunk chunk = _compiler.compile(p);
+		collect(chunk);
+		return chunk;
+	}
+
+	private void collect(Chunk chunk) {
+		_chunks.add(chunk);
+		for(Chunk function : chunk._functions)
+			collect(function);
+	}
+
+	/** Functions called at least the given number of times, most called first. */
+	public List<Chunk> hot(long calls) {
+		List<Chunk> hot = new ArrayList<Chunk>();
+		for(Chunk chunk : _chunks)
+			if(chunk._lambda != null && chunk._calls >= calls)
+				hot.add(chunk);
+		hot.sort((c1, c2) -> Long.compare(c2._calls, c1._calls));
+		return hot;
+	}
+
+	/** Runs a compiled program; like the Evaluator, a cast failure makes the whole program a DynamicError. */
+	Value run(Chunk program) {
+		try {
+			return execute(new Frame(program, NOTHING, null, 0));
+		} catch (ClassCastException e) {
+			return new DynamicError(e.getMessage());
+		}
+	}
+
+	private Value execute(Frame frame) {
+		Env globals = _host.initEnv;
+		int[] code = frame._chunk._code;
+		Value[] R = frame._regs;
+		int pc = 0;
+		while(true) {
+			switch(code[pc]) {
+			case CONST:
+				R[code[pc + 1]] = frame._chunk._constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case BOOL:
+				R[code[pc + 1]] = code[pc + 2] != 0 ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case UNIT:
+				R[code[pc + 1]] = UNIT_VAL;
+				pc += 2;
+				break;
+			case MOVE:
+				R[code[pc + 1]] = R[code[pc + 2]];
+				pc += 3;
+				break;
+			case CAPTURED:
+				R[code[pc + 1]] = frame._captured[code[pc + 2]];
+				pc += 3;
+				break;
+			case GLOBAL:
+				R[code[pc + 1]] = frame._chunk.cell(code[pc + 2], (GlobalEnv) globals).get();
+				pc += 3;
+				break;
+			case DEFINE:
+				((GlobalEnv) globals).extend(frame._chunk._names[code[pc + 2]], R[code[pc + 3]]);
+				R[code[pc + 1]] = UNIT_VAL;
+				pc += 4;
+				break;
+			case ADD: {
+				Value a = R[code[pc + 2]], b = R[code[pc + 3]];
+				R[code[pc + 1]] = a instanceof NumVal && b instanceof NumVal
+						? new NumVal(((NumVal) a).v() + ((NumVal) b).v()) : ArrayOps.arith('+', a, b);
+				pc += 4;
+				break;
+			}
+			case SUB: {
+				Value a = R[code[pc + 2]], b = R[code[pc + 3]];
+				R[code[pc + 1]] = a instanceof NumVal && b instanceof NumVal
+						? new NumVal(((NumVal) a).v() - ((NumVal) b).v()) : ArrayOps.arith('-', a, b);
+				pc += 4;
+				break;
+			}
+			case MUL: {
+				Value a = R[code[pc + 2]], b = R[code[pc + 3]];
+				R[code[pc + 1]] = a instanceof NumVal && b instanceof NumVal
+						? new NumVal(((NumVal) a).v() * ((NumVal) b).v()) : ArrayOps.arith('*', a, b);
+				pc += 4;
+				break;
+			}
+			case DIV: {
+				Value a = R[code[pc + 2]], b = R[code[pc + 3]];
+				R[code[pc + 1]] = a instanceof NumVal && b instanceof NumVal
+						? new NumVal(((NumVal) a).v() / ((NumVal) b).v()) : ArrayOps.arith('/', a, b);
+				pc += 4;
+				break;
+			}
+			case LESS:
+				R[code[pc + 1]] = ((NumVal) R[code[pc + 2]]).v() < ((NumVal) R[code[pc + 3]]).v() ? TRUE : FALSE;
+				pc += 4;
+				break;
+			case GREATER:
+				R[code[pc + 1]] = ((NumVal) R[code[pc + 2]]).v() > ((NumVal) R[code[pc + 3]]).v() ? TRUE : FALSE;
+				pc += 4;
+				break;
+			case EQUAL:
+				R[code[pc + 1]] = Evaluator.compareValues(R[code[pc + 2]], R[code[pc + 3]]) ? TRUE : FALSE;
+				pc += 4;
+				break;
+			case CAST:
+				if(code[pc + 2] == 0)
+					((NumVal) R[code[pc + 1]]).v();
+				else if(code[pc + 2] == 2)
+					ArrayOps.operand(R[code[pc + 1]]);
+				else
+					((RefVal) R[code[pc + 1]]).loc();
+				pc += 3;
+				break;
+			case JUMP:
+				pc = code[pc + 1];
+				break;
+			case BRANCH: {
+				Value cond = R[code[pc + 1]];
+				if(!(cond instanceof BoolVal)) {
+					R[code[pc + 3]] = new DynamicError("Condition not a boolean in expression " + print(frame, code[pc + 4]));
+					pc = code[pc + 5];
+				} else if(((BoolVal) cond).v())
+					pc += 6;
+				else
+					pc = code[pc + 2];
+				break;
+			}
+			case CLOSURE: {
+				Value[] captured = new Value[code[pc + 3]];
+				for(int i = 0; i < captured.length; i++)
+					captured[i] = R[code[pc + 4 + i]];
+				R[code[pc + 1]] = new Closure(frame._chunk._functions[code[pc + 2]], captured, globals);
+				pc += 4 + captured.length;
+				break;
+			}
+			case FUNCTION:
+				if(!(R[code[pc + 2]] instanceof FunVal)) {
+					R[code[pc + 1]] = new DynamicError("Operator not a function in call " + print(frame, code[pc + 3]));
+					pc = code[pc + 4];
+				} else
+					pc += 5;
+				break;
+			case CALL:
+			case TAILCALL: {
+				FunVal operator = (FunVal) R[code[pc + 2]];
+				int argc = code[pc + 4];
+				int dst = code[pc + 1];
+				int next = pc + 5 + argc;
+				int formals = operator.formals().size();
+				if(argc != formals && argc != formals - 1) {
+					R[dst] = new DynamicError("Argument mismatch in call " + print(frame, code[pc + 3]));
+					pc = next;
+					break;
+				}
+				if(!(operator instanceof Closure)) {
+					Value[] values = new Value[formals];
+					for(int i = 0; i < argc; i++)
+						values[i] = R[code[pc + 5 + i]];
+					R[dst] = _host.apply(operator, values);
+					pc = next;
+					break;
+				}
+				Closure closure = (Closure) operator;
+				Chunk chunk = closure._chunk;
+				Frame callee;
+				if(code[pc] == CALL) {
+					frame._pc = next;
+					callee = new Frame(chunk, closure._captured, frame, dst);
+				} else
+					callee = new Frame(chunk, closure._captured, frame._caller, frame._ret);
+				for(int i = 0; i < argc; i++)
+					callee._regs[i] = R[code[pc + 5 + i]];
+				if(argc < formals)
+					callee._regs[argc] = missing(closure, globals);
+				frame = callee;
+				code = chunk._code;
+				R = callee._regs;
+				pc = 0;
+				break;
+			}
+			case RETURN: {
+				Value result = R[code[pc + 1]];
+				Frame caller = frame._caller;
+				if(caller == null)
+					return result;
+				caller._regs[frame._ret] = result;
+				frame = caller;
+				code = frame._chunk._code;
+				R = frame._regs;
+				pc = frame._pc;
+				break;
+			}
+			case CONS:
+				R[code[pc + 1]] = new PairVal(R[code[pc + 2]], R[code[pc + 3]]);
+				pc += 4;
+				break;
+			case CAR:
+				R[code[pc + 1]] = ((PairVal) R[code[pc + 2]]).fst();
+				pc += 3;
+				break;
+			case CDR:
+				R[code[pc + 1]] = ((PairVal) R[code[pc + 2]]).snd();
+				pc += 3;
+				break;
+			case LIST: {
+				int length = code[pc + 2];
+				Value result = new Null();
+				for(int i = length - 1; i >= 0; i--)
+					result = new PairVal(R[code[pc + 3 + i]], result);
+				R[code[pc + 1]] = result;
+				pc += 3 + length;
+				break;
+			}
+			case ISNULL:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof Null ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISNUM:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof NumVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISBOOL:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof BoolVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISSTR:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof StringVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISPROC:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof FunVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISPAIR:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof PairVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case ISLIST:
+				R[code[pc + 1]] = isList(R[code[pc + 2]], code[pc + 3] != 0) ? TRUE : FALSE;
+				pc += 4;
+				break;
+			case ISUNIT:
+				R[code[pc + 1]] = R[code[pc + 2]] instanceof UnitVal ? TRUE : FALSE;
+				pc += 3;
+				break;
+			case REF:
+				R[code[pc + 1]] = _host.heap.ref(R[code[pc + 2]]);
+				pc += 3;
+				break;
+			case DEREF:
+				R[code[pc + 1]] = _host.heap.deref((RefVal) R[code[pc + 2]]);
+				pc += 3;
+				break;
+			case SETREF:
+				R[code[pc + 1]] = _host.heap.setref((RefVal) R[code[pc + 2]], R[code[pc + 3]]);
+				pc += 4;
+				break;
+			case FREE:
+				_host.heap.free((RefVal) R[code[pc + 2]]);
+				R[code[pc + 1]] = UNIT_VAL;
+				pc += 3;
+				break;
+			case ARRAY:
+				R[code[pc + 1]] = array(registers(R, code, pc + 2));
+				pc += 3 + code[pc + 2];
+				break;
+			case INDEX:
+				R[code[pc + 1]] = index(R[code[pc + 2]], R, code, pc + 3);
+				pc += 4 + code[pc + 3];
+				break;
+			case ARRSET:
+				R[code[pc + 1]] = assign(R[code[pc + 2]], R, code, pc + 4, R[code[pc + 3]]);
+				pc += 5 + code[pc + 4];
+				break;
+			case ARRAYOP:
+				R[code[pc + 1]] = ArrayOps.apply(code[pc + 2], registers(R, code, pc + 3));
+				pc += 4 + code[pc + 3];
+				break;
+			case READ:
+				R[code[pc + 1]] = read((StringVal) R[code[pc + 2]]);
+				pc += 3;
+				break;
+			case EVAL: {
+				Program p = _host._reader.parse(((StringVal) R[code[pc + 2]]).v());
+				R[code[pc + 1]] = run(compile(p));
+				pc += 3;
+				break;
+			}
+			default:
+				throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc + " in " + frame._chunk._name);
+			}
+		}
+	}
+
+	/** The value of a last formal left out of a call, found where the Evaluator would find it. */
+	private static Value missing(Closure closure, Env globals) {
+		Chunk chunk = closure._chunk;
+		if(chunk._default != null)
+			return chunk._default;
+		if(chunk._fallback >= 0)
+			return closure._captured[chunk._fallback];
+		return globals.get(chunk._lambda.formals().get(chunk._arity - 1));
+	}
+
+	private String print(Frame frame, int node) {
+		return (String) frame._chunk._nodes[node].accept(ts, _host.initEnv);
+	}
+
+	private static Value[] registers(Value[] R, int[] code, int count) {
+		Value[] vals = new Value[code[count]];
+		for(int i = 0; i < vals.length; i++)
+			vals[i] = R[code[count + 1 + i]];
+		return vals;
+	}
+
+	private static boolean isList(Value val, boolean listExp) {
+		if(val instanceof PairVal) {
+			Value snd = ((PairVal) val).snd();
+			if(snd instanceof PairVal)
+				return ((PairVal) snd).snd() instanceof PairVal;
+			if(snd instanceof Null)
+				return true;
+		}
+		else if(val instanceof Null)
+			return true;
+		return listExp;
+	}
+
+	private static Value read(StringVal fileName) {
+		try {
+			String text = Reader.readFile("" + System.getProperty("user.dir") + File.separator + fileName.v());
+			return new StringVal(text);
+		} catch (IOException ex) {
+			return new DynamicError(ex.getMessage());
+		}
+	}
+
+	// Arrays, with the checks and messages of the Evaluator.
+
+	private Value array(Value[] dims) {
+		int[] dim_list = new int[dims.length];
+		for(int i = 0; i < dims.length; i++) {
+			Value val = dims[i];
+			if(val instanceof DynamicError)
+				return val;
+			if(!(val instanceof NumVal) || ((NumVal) val).v() != Math.floor(((NumVal) val).v()))
+				return new DynamicError("Error: Array sizes are not ints.");
+			int dim = (int) ((NumVal) val).v();
+			if(dim <= 0)
+				return new DynamicError("Error: Array sizes cannot be negative.");
+			dim_list[i] = dim;
+		}
+		if(ArrayVal.size(dim_list) < 0)
+			return new DynamicError("Error: Array sizes are too large.");
+		return new ArrayVal(dim_list);
+	}
+
+	/*
+	 * The indices are read straight from the registers: code[at] is their
+	 * number and the registers follow it, as in the INDEX and ARRSET
+	 * instructions. Nothing is allocated unless there is an error.
+	 */
+
+	/** The error in indexing arr with the given registers, or null if there is none. */
+	private static Value indexError(Value arr, Value[] R, int[] code, int at, boolean positive) {
+		if(!(arr instanceof ArrayVal))
+			return new DynamicError("Error: First argument must be an array.");
+		int[] dims = ((ArrayVal) arr).dims();
+		if(dims.length == 0)
+			return new DynamicError("Error: An empty array has no elements to index.");
+		int count = code[at];
+		for(int i = 0; i < count; i++) {
+			Value val = R[code[at + 1 + i]];
+			if(val instanceof DynamicError)
+				return val;
+			boolean integer = val instanceof NumVal && ((NumVal) val).v() == Math.floor(((NumVal) val).v());
+			if(positive && (!integer || (int) ((NumVal) val).v() <= 0))
+				return new DynamicError("Error: Array indices should be positive integers.");
+			if(!integer)
+				return new DynamicError("Error: Array indices should be integers.");
+			int index = (int) ((NumVal) val).v();
+			if(index <= 0)
+				return new DynamicError("Error: Indices must be positive.");
+			if(i >= dims.length || index > dims[i])
+				return new DynamicError("Error: Indices should not exceed their relevant array size.");
+		}
+		if(count != dims.length)
+			return new DynamicError("Error: Too many or too few indices for this array.");
+		return null;
+	}
+
+	/** Offset in the elements of arr of the element at indices already checked. */
+	private static int offset(ArrayVal arr, Value[] R, int[] code, int at) {
+		int[] strides = arr.strides();
+		int offset = arr.offset();
+		for(int i = 0; i < strides.length; i++)
+			offset += ((int) ((NumVal) R[code[at + 1 + i]]).v() - 1) * strides[i];
+		return offset;
+	}
+
+	private static Value index(Value arr, Value[] R, int[] code, int at) {
+		Value error = indexError(arr, R, code, at, true);
+		if(error != null)
+			return error;
+		return new NumVal(((ArrayVal) arr).elems()[offset((ArrayVal) arr, R, code, at)]);
+	}
+
+	private static Value assign(Value arr, Value[] R, int[] code, int at, Value val) {
+		if(arr instanceof DynamicError)
+			return arr;
+		Value error = indexError(arr, R, code, at, false);
+		if(error != null)
+			return error;
+		if(val instanceof DynamicError)
+			return val;
+		if(!(val instanceof NumVal))
+			return new DynamicError("Error: Current functionality allows only numeric arrays.");
+		((ArrayVal) arr).elems()[offset((ArrayVal) arr, R, code, at)] = ((NumVal) val).v();
+		return arr;
+	}
+}
@@ -0,0 +1,360 @@
+package funclang;
+import static funclang.AST.*;
+
+import java.util.List;
+
+/**
+ * Lexical addressing pass. Walks a freshly parsed program and annotates every
+ * VarExp with the (depth, slot) address of its binding, mirroring the frames
+ * that the Evaluator builds: one frame per let, one frame per call, and one
+ * extra frame holding the default parameter of a lambda that declares one.
+ * Names that are not bound by any enclosing frame are marked global and are
+ * looked up in the GlobalEnv.
+ *
+ * A closure does not keep the whole env it is created in, but one frame with
+ * the values of the variables its lambda captures, in front of the globals.
+ * The variables a lambda captures are the local ones it uses from outside,
+ * found here while its body is resolved, and its last formal if that name is
+ * bound outside, as a call that leaves out the last actual looks it up there.
+ *
+ * The same walk marks calls in tail position, i.e. calls whose value is the
+ * value of the enclosing lambda body: the body itself, the branches of an if
+ * and the body of a let that are in tail position.
+ */
+public class Resolver implements Visitor<Void> {
+
+	static class Scope {
+		private List<String> _names;
+		private Scope _parent;
+		private LambdaExp _lambda; // set for the frame of captured variables
+		Scope(List<String> names, Scope parent) {
+			_names = names;
+			_parent = parent;
+		}
+	}
+
+	private Scope _scope = null;
+	private boolean _tail = false;
+
+	public Program resolve(Program p) {
+		p.accept(this, null);
+		return p;
+	}
+
+	private void push(List<String> names) {
+		_scope = new Scope(names, _scope);
+	}
+
+	private void pop() {
+		_scope = _scope._parent;
+	}
+
+	private void resolve(Exp e, boolean tail) {
+		_tail = tail;
+		e.accept(this, null);
+	}
+
+	private void resolveAll(List<Exp> exps) {
+		for(Exp exp : exps)
+			resolve(exp, false);
+	}
+
+	@Override
+	public Void visit(AddExp e, Env env) {
+		resolveAll(e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(UnitExp e, Env env) {
+		return null;
+	}
+
+	@Override
+	public Void visit(NumExp e, Env env) {
+		return null;
+	}
+
+	@Override
+	public Void visit(StrExp e, Env env) {
+		return null;
+	}
+
+	@Override
+	public Void visit(BoolExp e, Env env) {
+		return null;
+	}
+
+	@Override
+	public Void visit(DivExp e, Env env) {
+		resolveAll(e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(MultExp e, Env env) {
+		resolveAll(e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(Program p, Env env) {
+		for(DefineDecl d: p.decls())
+			resolve(d, false);
+		resolve(p.e(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(SubExp e, Env env) {
+		resolveAll(e.all());
+		return null;
+	}
+
+	@Override
+	public Void visit(VarExp e, Env env) {
+		int[] address = address(e.name(), _scope);
+		if(address != null)
+			e.resolve(address[0], address[1]);
+		else
+			e.resolve(VarExp.GLOBAL, 0);
+		return null;
+	}
+
+	/**
+	 * The (depth, slot) of a name as seen from a scope, or null if it is
+	 * global. Reaching the captured frame of a lambda makes the lambda capture
+	 * the name, if it is bound further out.
+	 */
+	private int[] address(String name, Scope scope) {
+		for(int depth = 0; scope != null; scope = scope._parent, depth++) {
+			int slot = scope._names.lastIndexOf(name);
+			if(slot >= 0)
+				return new int[] { depth, slot };
+			if(scope._lambda != null) {
+				int[] outer = address(name, scope._parent);
+				if(outer == null)
+					return null;
+				scope._lambda.capture(name, outer[0], outer[1]);
+				return new int[] { depth, scope._names.size() - 1 };
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Void visit(LetExp e, Env env) {
+		boolean tail = _tail;
+		resolveAll(e.value_exps());
+		push(e.names());
+		resolve(e.body(), tail);
+		pop();
+		return null;
+	}
+
+	@Override
+	public Void visit(DefineDecl d, Env env) {
+		resolve(d.value_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ReadExp e, Env env) {
+		resolve(e.file(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(EvalExp e, Env env) {
+		resolve(e.code(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(LambdaExp e, Env env) {
+		List<String> formals = e.formals();
+		if(e.defParam() != null)
+			resolve(e.defParam(), false);
+		e.clearCaptured();
+		push(e.captured());
+		_scope._lambda = e;
+		if(e.defParam() != null)
+			push(formals.subList(formals.size() - 1, formals.size()));
+		push(formals);
+		resolve(e.body(), true);
+		pop();
+		if(e.defParam() != null)
+			pop();
+		pop();
+		if(!formals.isEmpty()) {
+			String last = formals.get(formals.size() - 1);
+			int[] outer = e.captured().contains(last) ? null : address(last, _scope);
+			if(outer != null)
+				e.capture(last, outer[0], outer[1]);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visit(CallExp e, Env env) {
+		e.setTail(_tail);
+		resolve(e.operator(), false);
+		resolveAll(e.operands());
+		return null;
+	}
+
+	@Override
+	public Void visit(IfExp e, Env env) {
+		boolean tail = _tail;
+		resolve(e.conditional(), false);
+		resolve(e.then_exp(), tail);
+		resolve(e.else_exp(), tail);
+		return null;
+	}
+
+	@Override
+	public Void visit(LessExp e, Env env) {
+		resolve(e.first_exp(), false);
+		resolve(e.second_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(EqualExp e, Env env) {
+		resolve(e.first_exp(), false);
+		resolve(e.second_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(GreaterExp e, Env env) {
+		resolve(e.first_exp(), false);
+		resolve(e.second_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(CarExp e, Env env) {
+		resolve(e.arg(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(CdrExp e, Env env) {
+		resolve(e.arg(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ConsExp e, Env env) {
+		resolve(e.fst(), false);
+		resolve(e.snd(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ListExp e, Env env) {
+		resolveAll(e.elems());
+		return null;
+	}
+
+	@Override
+	public Void visit(NullExp e, Env env) {
+		resolve(e.arg(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(NumPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(BoolPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(StrPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ProcPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(PairPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ListPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(UnitPredExp e, Env env) {
+		resolve(e.exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(RefExp e, Env env) {
+		resolve(e.val_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(DerefExp e, Env env) {
+		resolve(e.loc_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(SetrefExp e, Env env) {
+		resolve(e.loc_exp(), false);
+		resolve(e.val_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(FreeExp e, Env env) {
+		resolve(e.loc_exp(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrayExp e, Env env) {
+		resolveAll(e.dims());
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrAssignExp e, Env env) {
+		resolve(e.arr(), false);
+		resolveAll(e.idxs());
+		resolve(e.val(), false);
+		return null;
+	}
+
+	@Override
+	public Void visit(IndexExp e, Env env) {
+		resolve(e.arr(), false);
+		resolveAll(e.idxs());
+		return null;
+	}
+
+	@Override
+	public Void visit(ArrayOpExp e, Env env) {
+		resolveAll(e.args());
+		return null;
+	}
+}
@@ -0,0 +1,90 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import funclang.AST.*;
+
+/**
+ * Measures how evaluation scales with threads. A fixed number of (fib n)
+ * calls is split over a pool of 1, 2, 4, ... threads up to the number of
+ * CPUs. An Evaluator keeps its heap and the roots of its collector in
+ * fields that are not safe to share, so each thread runs its share of the
+ * calls on an Evaluator of its own, with its own program. The classes and
+ * the JIT are still shared; with no contention the time should fall close
+ * to 1/threads.
+ *
+ * Run with an optional number of calls and n, e.g. java funclang.ThreadBenchmark 256 20
+ */
+public class ThreadBenchmark {
+
+	static final String FIB = "(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))";
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		String program = "(fib " + n + ")";
+		String expected = new Fib(program).call();
+
+		System.out.printf("%d x (fib %d) on %d CPUs%n", calls, n, cpus);
+		System.out.printf("%-8s %12s %10s%n", "threads", "ms", "speedup");
+		run(program, expected, 1, calls); // warm-up
+		double single = 0;
+		for(int threads = 1; threads <= cpus; threads *= 2) {
+			double ms = run(program, expected, threads, calls);
+			if(threads == 1)
+				single = ms;
+			System.out.printf("%-8d %12.1f %9.2fx%n", threads, ms, single / ms);
+		}
+	}
+
+	/** An Evaluator with fib defined, and the program to run on it. */
+	static class Fib {
+		final Evaluator _eval;
+		final Program _p;
+
+		Fib(String program) {
+			Reader reader = new Reader();
+			_eval = new Evaluator(reader);
+			_eval.valueOf(reader.parse(FIB));
+			_p = reader.parse(program);
+		}
+
+		String call() {
+			return _eval.valueOf(_p).tostring();
+		}
+	}
+
+	/** Milliseconds to make the given number of calls on a pool of threads. */
+	static double run(String program, String expected, int threads, int calls) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Fib> fibs = new ArrayList<Fib>(threads);
+			for(int t = 0; t < threads; t++)
+				fibs.add(new Fib(program));
+			List<Future<String>> results = new ArrayList<Future<String>>(threads);
+			long start = System.nanoTime();
+			for(int t = 0; t < threads; t++) {
+				Fib fib = fibs.get(t);
+				int share = calls / threads + (t < calls % threads ? 1 : 0);
+				results.add(pool.submit(() -> {
+					String result = expected;
+					for(int i = 0; i < share && result.equals(expected); i++)
+						result = fib.call();
+					return result;
+				}));
+			}
+			for(Future<String> result : results)
+				if(!result.get().equals(expected))
+					throw new IllegalStateException(result.get() + " instead of " + expected);
+			return (System.nanoTime() - start) / 1e6;
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -1,8 +1,10 @@
 package funclang;
 
+import java.util.Arrays;
 import java.util.List;
 
 import funclang.AST.Exp;
+import funclang.AST.LambdaExp;
 
 public interface Value {
 	public String tostring();
@@ -10,31 +12,45 @@ public interface Value {
 		private Env _env;
 		private List<String> _formals;
 		private Exp _body;
+		private ClosureCompiler.Node _code;
+		private LambdaExp _lambda;
 		public FunVal(Env env, List<String> formals, Exp body) {
 			_env = env;
 			_formals = formals;
 			_body = body;
 		}
+		public FunVal(Env env, LambdaExp lambda) {
+			this(env, lambda.formals(), lambda.body());
+			_lambda = lambda;
+		}
+		public FunVal(Env env, LambdaExp lambda, ClosureCompiler.Node code) {
+			this(env, lambda);
+			_code = code;
+		}
 		public Env env() { return _env; }
 		public List<String> formals() { return _formals; }
 		public Exp body() { return _body; }
+		public LambdaExp lambda() { return _lambda; }
+		public ClosureCompiler.Node code() { return _code; }
+		public void setCode(ClosureCompiler.Node code) { _code = code; }
 	    public String tostring() { 
 			String result = "(lambda ( ";
 
-			if(_env.get(_formals.get(formals().size()-1))!=null){
+			Env env = env();
+			if(env.get(_formals.get(formals().size()-1))!=null){
 				int i;
 				for(i=0; i<_formals.size()-1; i++){
 					result+=_formals.get(i) + " ";
 				}
 				result+= "(" + _formals.get(i) +" = " +
-						((NumVal) _env.get(_formals.get(formals().size()-1))).v() + ")";
+						((NumVal) env.get(_formals.get(formals().size()-1))).v() + ")";
 			}
 			else {
 				for (String formal : _formals)
 					result += formal + " ";
 			}
 			result += ") ";
-			result += _body.accept(new Printer.Formatter(), _env);
+			result += _body.accept(new Printer.Formatter(), env);
 			return result + ")";
 	    }
 	}
@@ -97,84 +113,170 @@ public interface Value {
 	}
 	static class RefVal implements Value {
 		private int loc = -1;
+		private int generation = 0; // of the slot when it was allocated
 		public RefVal(int loc){
 			this.loc = loc;
 		}
+		public RefVal(int loc, int generation){
+			this.loc = loc;
+			this.generation = generation;
+		}
 		public int loc(){return loc;}
+		public int generation(){return generation;}
+		/** Points this ref at the slot its value was moved to by a collector. */
+		void forward(int loc, int generation){
+			this.loc = loc;
+			this.generation = generation;
+		}
 		@Override
 		public String tostring() {
 			return "loc: " + this.loc;
 		}
 	}
 
+	/**
+	 * A numeric array. The elements are kept in a double[] outside the Heap.
+	 * The element at indices i1 ... in is at offset + (i1-1)*stride1 + ... +
+	 * (in-1)*striden in it. A new array has its own elements in row-major
+	 * order; a view, such as a slice or a transpose, shares the elements of
+	 * the array it was made from and has an offset and strides of its own.
+	 */
 	static class ArrayVal implements Value {
-		private List<Integer> _dims;
-		private List<RefVal> _vals;
-		private Heap _heap;
+		private final int[] _dims;
+		private final int[] _strides;
+		private final double[] _elems;
+		private final int _offset;
+
+		/** The most elements a new array may have: half the heap, at most. */
+		static final long MAX_SIZE = Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 2 / Double.BYTES);
+
+		/** An array of zeros with the given dimensions. */
+		public ArrayVal(int[] dims) {
+			_dims = dims;
+			_strides = rowMajor(dims);
+			_elems = new double[dims.length == 0 ? 0 : dims[0] * _strides[0]];
+			_offset = 0;
+		}
+
+		/** A view of elements that other arrays may share. */
+		public ArrayVal(double[] elems, int offset, int[] dims, int[] strides) {
+			_dims = dims;
+			_strides = strides;
+			_elems = elems;
+			_offset = offset;
+		}
+
+		/**
+		 * The number of elements of a new array with the given dimensions, or
+		 * -1 if it would need more than MAX_SIZE.
+		 */
+		static long size(int[] dims) {
+			long size = dims.length == 0 ? 0 : 1;
+			try {
+				for (int dim : dims)
+					size = Math.multiplyExact(size, dim);
+			} catch (ArithmeticException e) {
+				return -1;
+			}
+			return size > MAX_SIZE ? -1 : size;
+		}
 
-		public ArrayVal(List<Integer> _dims, List<RefVal> _vals, Heap _heap) {
-			this._dims = _dims;
-			this._vals = _vals;
-			this._heap = _heap;
+		/** The strides of a new array with the given dimensions. */
+		static int[] rowMajor(int[] dims) {
+			int[] strides = new int[dims.length];
+			int size = 1;
+			for (int i = dims.length - 1; i >= 0; i--) {
+				strides[i] = size;
+				size *= dims[i];
+			}
+			return strides;
 		}
 
-		public List<Integer> getDims() {
+		public int[] dims() {
 			return _dims;
 		}
 
-		public List<RefVal> getVals() {
-			return _vals;
+		public int[] strides() {
+			return _strides;
+		}
+
+		public double[] elems() {
+			return _elems;
+		}
+
+		public int offset() {
+			return _offset;
+		}
+
+		public int size() {
+			int size = _dims.length == 0 ? 0 : 1;
+			for (int dim : _dims)
+				size *= dim;
+			return size;
 		}
 
+		/** Whether the elements are the ones from offset on, in row-major order. */
+		public boolean isContiguous() {
+			return Arrays.equals(_strides, rowMajor(_dims));
+		}
+
+		/** Where in elems() the k-th element in row-major order is, counting from 0. */
+		public int at(int k) {
+			int at = _offset;
+			for (int i = _dims.length - 1; i >= 0; i--) {
+				at += (k % _dims[i]) * _strides[i];
+				k /= _dims[i];
+			}
+			return at;
+		}
+
+		/*
+		 * One dimension is printed one element per line, and two as rows. With
+		 * more, the two dimensional blocks are printed one after the other,
+		 * the last index varying slowest.
+		 */
 		@Override
 		public String tostring() {
-			int index = 0;
 			StringBuilder res = new StringBuilder();
-			if (_dims.size() == 0) {
+			if (_dims.length == 0) {
 				return "[]";
 			}
-			if (_dims.size() == 1) {
+			if (_dims.length == 1) {
 				res.append("[");
-				for (int i = 0; i < _vals.size() - 1; i++) {
-					res.append(_heap.deref(_vals.get(i)).tostring());
-					res.append("\n");
+				for (int i = 0; i < _dims[0]; i++) {
+					if (i > 0)
+						res.append("\n");
+					res.append(new NumVal(_elems[_offset + i * _strides[0]]).tostring());
 				}
-				res.append(_heap.deref(_vals.get(_vals.size() - 1)).tostring());
 				res.append("]");
 				return res.toString();
 			}
-			res = arrStringBuilder(_dims.size() - 1, res);
+			arrStringBuilder(_dims.length - 1, _offset, res);
 			return res.toString();
 		}
 
-		private StringBuilder arrStringBuilder(int dimIndex, StringBuilder str) {
+		private void arrStringBuilder(int dimIndex, int base, StringBuilder str) {
 			if (dimIndex == 1) {
 				str.append("[");
-				for (int i = 0; i < _dims.get(0); i++) {
-					str.append("[");
-					for (int j = 0; j < _dims.get(1); j++) {
-						str.append(_heap.deref(_vals.get(index)).tostring());
-						str.append(" ");
-						index++;
+				for (int i = 0; i < _dims[0]; i++) {
+					str.append(i == 0 ? "[" : "\n[");
+					for (int j = 0; j < _dims[1]; j++) {
+						if (j > 0)
+							str.append(" ");
+						str.append(new NumVal(_elems[base + i * _strides[0] + j * _strides[1]]).tostring());
 					}
-					str.delete(str.length() - 1, str.length());
-					str.append("]\n");
+					str.append("]");
 				}
-				str.delete(str.length() - 2, str.length());
-				str.append("]");
 				str.append("]");
-				return str;
+				return;
 			}
-
 			str.append("[");
-			for (int i = 0; i < _dims.get(dimIndex); i++) {
-				arrStringBuilder(dimIndex - 1, str);
-				str.append("\n");
+			for (int i = 0; i < _dims[dimIndex]; i++) {
+				if (i > 0)
+					str.append("\n");
+				arrStringBuilder(dimIndex - 1, base + i * _strides[dimIndex], str);
 			}
-//Remove the last new line
-			str.delete(str.length() - 1, str.length());
 			str.append("]");
-			return str;
 		}
 	}
 
@@ -1,7 +1,12 @@
 package listlang;
 
+import java.util.List;
+
 /**
  * Representation of an environment, which maps variables to values.
+ * Variable names are interned by the AST, so a binding is matched by
+ * comparing references rather than characters. Local environments never
+ * change once built, so threads can share them without locking.
  * 
  * @author hridesh
  *
@@ -25,16 +30,16 @@ public interface Env {
 	}
 	
 	static public class ExtendEnv implements Env {
-		private Env _saved_env; 
-		private String _var; 
-		private Value _val; 
+		private final Env _saved_env;
+		private final String _var;
+		private final Value _val;
 		public ExtendEnv(Env saved_env, String var, Value val){
 			_saved_env = saved_env;
 			_var = var;
 			_val = val;
 		}
-		public synchronized Value get (String search_var) {
-			if (search_var.equals(_var))
+		public Value get (String search_var) {
+			if (search_var == _var)
 				return _val;
 			return _saved_env.get(search_var);
 		}
@@ -43,4 +48,30 @@ public interface Env {
 		public String var() { return _var; }
 		public Value val() { return _val; }
 	}
+
+	/**
+	 * The bindings of one let, all in one frame: its names, a Value[] with
+	 * their values and the enclosing environment. A later name shadows an
+	 * earlier one, as in a chain of ExtendEnvs.
+	 */
+	static public class FrameEnv implements Env {
+		private final Env _saved_env;
+		private final List<String> _vars;
+		private final Value[] _vals;
+		public FrameEnv(Env saved_env, List<String> vars, Value[] vals){
+			_saved_env = saved_env;
+			_vars = vars;
+			_vals = vals;
+		}
+		public Value get (String search_var) {
+			for (int slot = _vals.length - 1; slot >= 0; slot--)
+				if (search_var == _vars.get(slot))
+					return _vals[slot];
+			return _saved_env.get(search_var);
+		}
+		public boolean isEmpty() { return false; }
+		public Env saved_env() { return _saved_env; }
+		public List<String> vars() { return _vars; }
+		public Value[] vals() { return _vals; }
+	}
 }
@@ -0,0 +1,90 @@
+package varlang;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import varlang.Env.*;
+import varlang.Value.NumVal;
+
+/**
+ * Compares the two ways of binding the names of a let: a chain with one
+ * ExtendEnv per name, and one FrameEnv holding all of them. For lets of a few
+ * sizes it builds the bindings, looks every name up once, and reports the
+ * bytes allocated and the time taken per let.
+ *
+ * Allocation is read from the HotSpot thread counters, so it is only shown on
+ * JVMs that have them. Run with an optional number of lets per size, e.g.
+ * java varlang.EnvBenchmark 1000000
+ */
+public class EnvBenchmark {
+
+	static final int[] SIZES = { 1, 2, 4, 8, 16 };
+
+	interface Binder {
+		Env bind(Env env, List<String> names, Value[] values);
+	}
+
+	static final Binder CHAIN = (env, names, values) -> {
+		for (int i = 0; i < names.size(); i++)
+			env = new ExtendEnv(env, names.get(i), values[i]);
+		return env;
+	};
+
+	static final Binder FRAME = (env, names, values) -> new FrameEnv(env, names, values);
+
+	public static void main(String[] args) {
+		int lets = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		System.out.printf("%-6s %16s %16s %14s %14s%n", "names", "chain bytes", "frame bytes", "chain ns", "frame ns");
+		for (int size : SIZES) {
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < size; i++)
+				names.add(("x" + i).intern());
+			Value[] values = new Value[size];
+			for (int i = 0; i < size; i++)
+				values[i] = new NumVal(i);
+			Env outer = new ExtendEnv(new EmptyEnv(), "y", new NumVal(-1));
+
+			run(CHAIN, outer, names, values, lets); // warm-up
+			run(FRAME, outer, names, values, lets);
+			double[] chain = measure(CHAIN, outer, names, values, lets);
+			double[] frame = measure(FRAME, outer, names, values, lets);
+			System.out.printf("%-6d %16s %16s %14.1f %14.1f%n", size,
+					bytes(chain[0]), bytes(frame[0]), chain[1], frame[1]);
+		}
+	}
+
+	/** Bytes allocated and nanoseconds taken per let. */
+	static double[] measure(Binder binder, Env outer, List<String> names, Value[] values, int lets) {
+		long before = allocated();
+		long start = System.nanoTime();
+		double sink = run(binder, outer, names, values, lets);
+		long time = System.nanoTime() - start;
+		long after = allocated();
+		if (sink == 0.5) // never true; keeps the lookups from being optimized away
+			System.out.println(sink);
+		return new double[] { before < 0 ? -1 : (double) (after - before) / lets, (double) time / lets };
+	}
+
+	static double run(Binder binder, Env outer, List<String> names, Value[] values, int lets) {
+		double sum = 0;
+		for (int n = 0; n < lets; n++) {
+			// Each let gets its own values array, as the Evaluator does.
+			Env env = binder.bind(outer, names, values.clone());
+			for (String name : names)
+				sum += ((NumVal) env.get(name)).v();
+		}
+		return sum;
+	}
+
+	static String bytes(double perLet) {
+		return perLet < 0 ? "n/a" : String.format("%.1f", perLet);
+	}
+
+	/** Bytes allocated so far by this thread, or -1 if the JVM does not count them. */
+	static long allocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
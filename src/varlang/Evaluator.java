@@ -3,7 +3,6 @@ import static varlang.AST.*;
 import static varlang.Value.*;
 
 import java.util.List;
-import java.util.ArrayList;
 
 import varlang.AST.AddExp;
 import varlang.AST.NumExp;
@@ -14,7 +13,7 @@ import varlang.AST.SubExp;
 import varlang.AST.VarExp;
 import varlang.AST.Visitor;
 import varlang.Env.EmptyEnv;
-import varlang.Env.ExtendEnv;
+import varlang.Env.FrameEnv;
 
 public class Evaluator implements Visitor<Value> {
 	
@@ -90,14 +89,12 @@ public class Evaluator implements Visitor<Value> {
 	public Value visit(LetExp e, Env env) { // New for varlang.
 		List<String> names = e.names();
 		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
+		Value[] values = new Value[value_exps.size()];
 		
-		for(Exp exp : value_exps) 
-			values.add((Value)exp.accept(this, env));
+		for(int i = 0; i < values.length; i++) 
+			values[i] = (Value) value_exps.get(i).accept(this, env);
 		
-		Env new_env = env;
-		for (int i = 0; i < names.size(); i++)
-			new_env = new ExtendEnv(new_env, names.get(i), values.get(i));
+		Env new_env = new FrameEnv(env, names, values);
 
 		return (Value) e.body().accept(this, new_env);		
 	}	
@@ -0,0 +1,77 @@
+package funclang;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ArrayKernels written with the incubating Vector API, so each loop handles
+ * as many doubles per instruction as the CPU's widest vectors hold. It lives
+ * outside src because it only compiles with the module added; build it after
+ * the rest and run with the same flag, e.g.
+ *
+ *   javac --add-modules jdk.incubator.vector -cp out -d out vector/funclang/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp out:lib/antlr-4.5-complete.jar funclang.Interpreter
+ *
+ * or, once the IDE has built the other classes, ant funclang-vector.
+ * ArrayKernels.load() picks it up when it can and uses the scalar loops
+ * otherwise.
+ *
+ * Element-wise kernels round exactly as the scalar ones do. The reductions
+ * add in a different order, and dot fuses each multiply into its add, so
+ * array-sum and array-dot may differ from the scalar results in the last
+ * bits.
+ */
+public class VectorKernels extends ArrayKernels {
+
+	static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public String name() {
+		return "vector " + SPECIES.vectorBitSize() + "-bit";
+	}
+
+	@Override
+	double sum(double[] a, int ao, int n) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+			acc = acc.add(DoubleVector.fromArray(SPECIES, a, ao + i));
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++)
+			s += a[ao + i];
+		return s;
+	}
+
+	/** Rounds once per fused multiply-add, unlike the scalar dot. */
+	@Override
+	double dot(double[] a, int ao, double[] b, int bo, int n) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+			acc = DoubleVector.fromArray(SPECIES, a, ao + i).fma(DoubleVector.fromArray(SPECIES, b, bo + i), acc);
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++)
+			s += a[ao + i] * b[bo + i];
+		return s;
+	}
+
+	@Override
+	void scale(double s, double[] x, int xo, int n) {
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+			DoubleVector.fromArray(SPECIES, x, xo + i).mul(s).intoArray(x, xo + i);
+		for(; i < n; i++)
+			x[xo + i] *= s;
+	}
+
+	@Override
+	void axpy(double s, double[] x, int xo, double[] y, int yo, int n) {
+		DoubleVector vs = DoubleVector.broadcast(SPECIES, s);
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+			DoubleVector.fromArray(SPECIES, x, xo + i).mul(vs).add(DoubleVector.fromArray(SPECIES, y, yo + i)).intoArray(y, yo + i);
+		for(; i < n; i++)
+			y[yo + i] += s * x[xo + i];
+	}
+}